@@ -0,0 +1,232 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Writes a synthetic policy in the same five text files the engine loads,
+ * at any scale, for benchmarking. The output is always valid: every role
+ * is in the hierarchy, and SSD constraints only cover a set of sensitive
+ * roles of which each user holds at most one.
+ * <p>
+ * Usage: {@code java PolicyGenerator [--out dir] [--users n] [--roles n]
+ * [--objects n] [--grants n] [--depth n] [--trees n] [--roles-per-user n]
+ * [--constraints n] [--seed n]}
+ */
+public class PolicyGenerator {
+    private static final String[] PERMISSIONS = {"read", "write", "execute",
+        "seek", "append", "delete", "approve", "audit"};
+
+    private int users = 1000;
+    private int roles = 100;
+    private int objects = 200;
+    private int grants = 1000;
+    private int depth = 8;
+    private int trees = 4;
+    private int rolesPerUser = 2;
+    private int constraints = 10;
+    private long seed = 1;
+
+    public static void main (String[] args) throws IOException {
+        PolicyGenerator generator = new PolicyGenerator();
+        Path out = Paths.get(".");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--out")) {
+                out = Paths.get(args[i + 1]);
+            } else if (!generator.setOption(args[i], args[i + 1])) {
+                System.err.printf("Unknown option %s%n", args[i]);
+                System.exit(1);
+            }
+        }
+        long start = System.nanoTime();
+        generator.write(out);
+        System.out.printf("Wrote policy to %s in %.1f s.%n", out,
+            (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Sets one option given on the command line.
+     *
+     * @param name  The option, e.g. "--users".
+     * @param value The option's value.
+     * @return false if the option is unknown.
+     */
+    boolean setOption (String name, String value) {
+        switch (name) {
+            case "--users":
+                setUsers(Integer.parseInt(value));
+                return true;
+            case "--roles":
+                setRoles(Integer.parseInt(value));
+                return true;
+            case "--objects":
+                setObjects(Integer.parseInt(value));
+                return true;
+            case "--grants":
+                setGrants(Integer.parseInt(value));
+                return true;
+            case "--depth":
+                setDepth(Integer.parseInt(value));
+                return true;
+            case "--trees":
+                setTrees(Integer.parseInt(value));
+                return true;
+            case "--roles-per-user":
+                setRolesPerUser(Integer.parseInt(value));
+                return true;
+            case "--constraints":
+                setConstraints(Integer.parseInt(value));
+                return true;
+            case "--seed":
+                setSeed(Long.parseLong(value));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public void setUsers (int users) {
+        this.users = users;
+    }
+
+    public void setRoles (int roles) {
+        this.roles = Math.max(2, roles);
+    }
+
+    public void setObjects (int objects) {
+        this.objects = Math.max(1, objects);
+    }
+
+    public void setGrants (int grants) {
+        this.grants = grants;
+    }
+
+    /**
+     * Sets the rough depth of each hierarchy tree. A role's descendant is
+     * picked among the roles just before it, so a tree of size s reaches a
+     * depth near the given one and deeper trees make every grant propagate
+     * further.
+     *
+     * @param depth The rough depth.
+     */
+    public void setDepth (int depth) {
+        this.depth = Math.max(1, depth);
+    }
+
+    public void setTrees (int trees) {
+        this.trees = Math.max(1, trees);
+    }
+
+    public void setRolesPerUser (int rolesPerUser) {
+        this.rolesPerUser = Math.max(1, rolesPerUser);
+    }
+
+    public void setConstraints (int constraints) {
+        this.constraints = constraints;
+    }
+
+    public void setSeed (long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Writes the five policy files into a directory, replacing any there.
+     *
+     * @param dir The directory, created if needed.
+     * @throws IOException If a file can't be written.
+     */
+    public void write (Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Random random = new Random(seed);
+        int treeCount = Math.min(trees, roles / 2);
+        int treeSize = roles / treeCount;
+
+        try (BufferedWriter out = writer(dir, "roleHierarchy.txt")) {
+            for (int role = 0; role < roles; role++) {
+                int tree = Math.min(role / treeSize, treeCount - 1);
+                int first = tree * treeSize;
+                if (role == first) {
+                    continue;
+                }
+                int window = Math.max(1, (role - first) / depth);
+                int descendant = role - 1 - random.nextInt(window);
+                out.write("R" + role + "\tR" + descendant + "\n");
+            }
+        }
+
+        try (BufferedWriter out = writer(dir, "resourceObjects.txt")) {
+            for (int object = 0; object < objects; object++) {
+                out.write((object == 0 ? "F" : "\tF") + object);
+            }
+            out.write("\n");
+        }
+
+        try (BufferedWriter out = writer(dir, "permissionsToRoles.txt")) {
+            for (int i = 0; i < grants; i++) {
+                out.write("R" + random.nextInt(roles) + "\t" +
+                    PERMISSIONS[random.nextInt(PERMISSIONS.length)] + "\tF" +
+                    random.nextInt(objects) + "\n");
+            }
+        }
+
+        int sensitiveCount = Math.min(roles / 2, constraints * 4);
+        BitSet sensitive = new BitSet(roles);
+        int[] sensitiveRoles = new int[sensitiveCount];
+        for (int i = 0; i < sensitiveCount; ) {
+            int role = random.nextInt(roles);
+            if (!sensitive.get(role)) {
+                sensitive.set(role);
+                sensitiveRoles[i++] = role;
+            }
+        }
+        try (BufferedWriter out = writer(dir, "roleSetsSSD.txt")) {
+            for (int i = 0; i < constraints && sensitiveCount >= 2; i++) {
+                int size = 2 + random.nextInt(Math.min(4, sensitiveCount - 1));
+                StringBuilder line = new StringBuilder();
+                line.append(2 + random.nextInt(size - 1));
+                BitSet picked = new BitSet(roles);
+                while (picked.cardinality() < size) {
+                    picked.set(sensitiveRoles[random.nextInt(sensitiveCount)]);
+                }
+                for (int role = picked.nextSetBit(0); role >= 0;
+                     role = picked.nextSetBit(role + 1)) {
+                    line.append("\tR").append(role);
+                }
+                out.write(line.append('\n').toString());
+            }
+        }
+
+        try (BufferedWriter out = writer(dir, "userRoles.txt")) {
+            StringBuilder line = new StringBuilder();
+            BitSet picked = new BitSet(roles);
+            for (int user = 0; user < users; user++) {
+                line.setLength(0);
+                picked.clear();
+                line.append('U').append(user);
+                boolean hasSensitive = false;
+                int count = 1 + random.nextInt(Math.min(rolesPerUser, roles));
+                for (int i = 0; i < count; i++) {
+                    int role = random.nextInt(roles);
+                    if (picked.get(role) ||
+                        (sensitive.get(role) && hasSensitive)) {
+                        continue;
+                    }
+                    hasSensitive |= sensitive.get(role);
+                    picked.set(role);
+                    line.append("\tR").append(role);
+                }
+                out.write(line.append('\n').toString());
+            }
+        }
+    }
+
+    private static BufferedWriter writer (Path dir, String name)
+        throws IOException {
+        return Files.newBufferedWriter(dir.resolve(name),
+            StandardCharsets.UTF_8);
+    }
+}
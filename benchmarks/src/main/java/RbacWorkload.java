@@ -0,0 +1,231 @@
+import benchmarks.Workload;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * The engine's side of the JMH benchmarks: loads a generated policy and
+ * runs single operations on it for the benchmarks package. Everything the
+ * loaders print is discarded, so it doesn't end up in the results.
+ */
+public class RbacWorkload implements Workload {
+    private static final PrintStream SILENT = new PrintStream(
+        new OutputStream() {
+            @Override
+            public void write (int b) {
+            }
+
+            @Override
+            public void write (byte[] b, int off, int len) {
+            }
+        });
+
+    private Path dir;
+    private RoleHierarchy roleHierarchy;
+    private Set<RbacObject> objects;
+    private SsdConstraintSet constraints;
+    private RoleObjectMatrix roleObjectMatrix;
+    private UserRoleMatrix userRoleMatrix;
+    private RbacController controller;
+    private PolicyStore store;
+    private List<AccessRequest> requests;
+    private List<Set<RbacRole>> roleSets;
+    private RbacRole[] randomRoles;
+    private RbacRole[] seniorRoles;
+    private RbacPermission benchPermission;
+
+    @Override
+    public void setUp (String dir, int users, int roles, int objects,
+        int depth) throws IOException {
+        this.dir = Paths.get(dir);
+        if (!Files.exists(this.dir.resolve("userRoles.txt"))) {
+            PolicyGenerator generator = new PolicyGenerator();
+            generator.setUsers(users);
+            generator.setRoles(roles);
+            generator.setObjects(objects);
+            generator.setGrants(Math.max(1000, objects * 4));
+            generator.setDepth(depth);
+            generator.write(this.dir);
+        }
+        silently(() -> {
+            roleHierarchy = RoleHierarchy.getRoleHierarchyFromFile(
+                file("roleHierarchy.txt"));
+            this.objects = RoleObjectMatrix.getResourceObjectsFromFile(
+                file("resourceObjects.txt"));
+            constraints = SsdConstraintSet.getConstraintSetFromFile(
+                file("roleSetsSSD.txt"));
+            roleObjectMatrix = (RoleObjectMatrix)load("permissions");
+            userRoleMatrix = (UserRoleMatrix)load("users");
+            return null;
+        });
+        if (roleHierarchy == null || this.objects == null ||
+            constraints == null || userRoleMatrix == null) {
+            throw new IOException("The policy in " + dir + " is invalid.");
+        }
+        controller = new RbacController(roleObjectMatrix, userRoleMatrix);
+
+        Random random = new Random(1);
+        requests = randomRequests(random);
+        roleSets = new ArrayList<>(REQUESTS);
+        for (AccessRequest request : requests) {
+            roleSets.add(userRoleMatrix.getRoles(request.getUser()));
+        }
+        List<RbacRole> allRoles = new ArrayList<>(roleObjectMatrix.getRoles());
+        randomRoles = new RbacRole[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            randomRoles[i] = allRoles.get(random.nextInt(allRoles.size()));
+        }
+        allRoles.sort(Comparator.comparingInt((RbacRole role) ->
+            roleHierarchy.getAllDescendants(role).size()).reversed());
+        seniorRoles = allRoles.subList(0, Math.min(8, allRoles.size()))
+            .toArray(new RbacRole[0]);
+        benchPermission = RbacPermission.valueOf("benchmark");
+    }
+
+    @Override
+    public void useVariant (String variant) {
+        switch (variant) {
+            case "plain":
+                break;
+            case "cache":
+                controller.enableDecisionCache(REQUESTS / 4,
+                    DecisionCache.Eviction.TINY_LFU);
+                break;
+            case "index":
+                controller.enableEffectivePermissionIndex();
+                break;
+            case "snapshot":
+                store = new PolicyStore(roleObjectMatrix, userRoleMatrix);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown variant " +
+                    variant);
+        }
+    }
+
+    @Override
+    public boolean check (int request) {
+        AccessRequest accessRequest = requests.get(request);
+        AccessDecision decision = store != null ?
+            store.current().check(accessRequest.getUser(),
+                accessRequest.getObject(), accessRequest.getPermission()) :
+            controller.check(accessRequest.getUser(),
+                accessRequest.getObject(), accessRequest.getPermission());
+        return decision == AccessDecision.GRANTED;
+    }
+
+    @Override
+    public int checkAll () {
+        return controller.checkAll(requests).cardinality();
+    }
+
+    @Override
+    public Object load (String file) {
+        return silently(() -> {
+            switch (file) {
+                case "hierarchy":
+                    return RoleHierarchy.getRoleHierarchyFromFile(
+                        file("roleHierarchy.txt"));
+                case "permissions":
+                    RoleObjectMatrix matrix =
+                        new RoleObjectMatrix(roleHierarchy, objects);
+                    matrix.applyRoleHierarchyPermissions();
+                    matrix.applyPermissionsFromFile(
+                        file("permissionsToRoles.txt"));
+                    return matrix;
+                case "constraints":
+                    return SsdConstraintSet.getConstraintSetFromFile(
+                        file("roleSetsSSD.txt"));
+                case "users":
+                case "users-parallel":
+                    UserRoleMatrix users = new UserRoleMatrix(constraints,
+                        roleHierarchy.getAllRoles());
+                    boolean loaded = file.equals("users") ?
+                        users.addUsersFromFile(file("userRoles.txt")) :
+                        users.addUsersFromFileParallel(file("userRoles.txt"));
+                    return loaded ? users : null;
+                default:
+                    throw new IllegalArgumentException("Unknown policy " +
+                        "file " + file);
+            }
+        });
+    }
+
+    @Override
+    public boolean propagate (int request) {
+        RbacRole role = seniorRoles[request % seniorRoles.length];
+        RbacObject object = requests.get(request).getObject();
+        boolean added = roleObjectMatrix.addPermission(role, object,
+            benchPermission);
+        roleObjectMatrix.revokePermission(role, object, benchPermission);
+        return added;
+    }
+
+    @Override
+    public boolean validateSsd (int request) {
+        return constraints.testAgainstAll(roleSets.get(request));
+    }
+
+    @Override
+    public boolean assignRole (int request) {
+        RbacUser user = requests.get(request).getUser();
+        RbacRole role = randomRoles[request];
+        if (!userRoleMatrix.assignRole(user, role)) {
+            return false;
+        }
+        userRoleMatrix.deassignRole(user, role);
+        return true;
+    }
+
+    /**
+     * Builds requests for random known users, objects and permissions.
+     *
+     * @param random The random source.
+     * @return The requests.
+     */
+    private List<AccessRequest> randomRequests (Random random) {
+        List<RbacUser> users = new ArrayList<>(userRoleMatrix.getUsers());
+        List<RbacObject> objects =
+            new ArrayList<>(roleObjectMatrix.getObjects());
+        List<RbacPermission> permissions = new ArrayList<>();
+        for (int i = 0; i < RbacPermission.SYMBOLS.size(); i++) {
+            permissions.add(RbacPermission.SYMBOLS.get(i));
+        }
+        List<AccessRequest> requests = new ArrayList<>(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            requests.add(new AccessRequest(
+                users.get(random.nextInt(users.size())),
+                objects.get(random.nextInt(objects.size())),
+                permissions.get(random.nextInt(permissions.size()))));
+        }
+        return requests;
+    }
+
+    private String file (String name) {
+        return dir.resolve(name).toString();
+    }
+
+    /**
+     * Runs a load with stdout and stderr discarded.
+     *
+     * @param load The load.
+     * @return What was loaded.
+     */
+    private static <T> T silently (Supplier<T> load) {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        System.setOut(SILENT);
+        System.setErr(SILENT);
+        try {
+            return load.get();
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+}
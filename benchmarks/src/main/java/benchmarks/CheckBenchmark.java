@@ -0,0 +1,38 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of single and batched access checks over random requests for
+ * known users, objects and permissions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckBenchmark {
+    @Param({"plain", "cache", "index", "snapshot"})
+    public String variant;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp (PolicyState policy) {
+        policy.workload.useVariant(variant);
+    }
+
+    @Benchmark
+    public boolean check (PolicyState policy) {
+        next = (next + 1) & (Workload.REQUESTS - 1);
+        return policy.workload.check(next);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Workload.REQUESTS)
+    public int checkAll (PolicyState policy) {
+        return policy.workload.checkAll();
+    }
+}
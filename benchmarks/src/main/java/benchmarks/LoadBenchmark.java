@@ -0,0 +1,25 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Time to load each policy file from scratch. Loads are long and few, so
+ * each is timed as a single shot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadBenchmark {
+    @Param({"hierarchy", "permissions", "constraints", "users",
+        "users-parallel"})
+    public String file;
+
+    @Benchmark
+    public Object load (PolicyState policy) {
+        return policy.workload.load(file);
+    }
+}
@@ -0,0 +1,33 @@
+package benchmarks;
+
+import java.io.IOException;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A loaded policy shared by a benchmark's threads. Its scale is set with
+ * JMH parameters, e.g. {@code -p users=10000000 -p depth=32}; each scale is
+ * generated once into benchmark-policy/ and reused.
+ */
+@State(Scope.Benchmark)
+public class PolicyState {
+    @Param("10000")
+    public int users;
+
+    @Param("200")
+    public int roles;
+
+    @Param("1000")
+    public int objects;
+
+    @Param("8")
+    public int depth;
+
+    Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp () throws IOException {
+        workload = Workload.create();
+        workload.setUp(String.format("benchmark-policy/u%d-r%d-o%d-d%d",
+            users, roles, objects, depth), users, roles, objects, depth);
+    }
+}
@@ -0,0 +1,25 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of granting and revoking a permission high up a hierarchy, so
+ * both propagate to every inheriting role. Raise the depth parameter for
+ * deeper hierarchies.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropagationBenchmark {
+    private int next;
+
+    @Benchmark
+    public boolean addAndRevokePermission (PolicyState policy) {
+        next = (next + 1) & (Workload.REQUESTS - 1);
+        return policy.workload.propagate(next);
+    }
+}
@@ -0,0 +1,31 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of SSD validation: a whole role set against every constraint,
+ * as when a user is loaded, and a single role assignment checked against
+ * the user's running counts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SsdBenchmark {
+    private int next;
+
+    @Benchmark
+    public boolean testAgainstAll (PolicyState policy) {
+        next = (next + 1) & (Workload.REQUESTS - 1);
+        return policy.workload.validateSsd(next);
+    }
+
+    @Benchmark
+    public boolean assignRole (PolicyState policy) {
+        next = (next + 1) & (Workload.REQUESTS - 1);
+        return policy.workload.assignRole(next);
+    }
+}
@@ -0,0 +1,105 @@
+package benchmarks;
+
+import java.io.IOException;
+
+/**
+ * The engine as the benchmarks see it. The engine's classes live in the
+ * default package, which JMH won't generate benchmarks for and no named
+ * package can import, so the default package RbacWorkload implements this
+ * interface and the benchmarks create it by name. Once JIT compiled, a call
+ * through the interface costs the same as a direct one.
+ */
+public interface Workload {
+    /**
+     * The number of prepared requests. Request indexes must be below it.
+     */
+    int REQUESTS = 1 << 16;
+
+    /**
+     * Loads a policy, generating it first if the directory holds none, and
+     * prepares random requests against it.
+     *
+     * @param dir     The policy's directory.
+     * @param users   The number of users to generate.
+     * @param roles   The number of roles to generate.
+     * @param objects The number of objects to generate.
+     * @param depth   The rough depth of the generated hierarchy trees.
+     * @throws IOException If the policy can't be generated.
+     */
+    void setUp (String dir, int users, int roles, int objects, int depth)
+        throws IOException;
+
+    /**
+     * Picks how check decides: "plain" through RbacController, "cache"
+     * through its decision cache, "index" through its effective-permission
+     * index, or "snapshot" against a PolicyStore snapshot.
+     *
+     * @param variant The variant.
+     */
+    void useVariant (String variant);
+
+    /**
+     * Decides one prepared request.
+     *
+     * @param request The request's index.
+     * @return true if granted.
+     */
+    boolean check (int request);
+
+    /**
+     * Decides every prepared request in one RbacController.checkAll batch.
+     *
+     * @return The number granted.
+     */
+    int checkAll ();
+
+    /**
+     * Loads one policy file from scratch: "hierarchy", "permissions",
+     * "constraints", "users" or "users-parallel". Each needs the files
+     * before it, which setUp loaded.
+     *
+     * @param file The file to load.
+     * @return What was loaded.
+     */
+    Object load (String file);
+
+    /**
+     * Grants a permission to one of the roles with the most inheritors,
+     * propagating it down the hierarchy, and revokes it again.
+     *
+     * @param request The index of the request whose object to use.
+     * @return true if the permission was new.
+     */
+    boolean propagate (int request);
+
+    /**
+     * Checks a prepared user's role set against every SSD constraint.
+     *
+     * @param request The index of the request whose user to use.
+     * @return true if no constraint is broken.
+     */
+    boolean validateSsd (int request);
+
+    /**
+     * Assigns a random role to a prepared user, which checks only the SSD
+     * constraints mentioning it, and takes it away again if assigned.
+     *
+     * @param request The index of the request whose user to use.
+     * @return true if the role was assigned.
+     */
+    boolean assignRole (int request);
+
+    /**
+     * Creates the engine's implementation.
+     *
+     * @return A new workload, not set up yet.
+     */
+    static Workload create () {
+        try {
+            return (Workload)Class.forName("RbacWorkload")
+                .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("RbacWorkload is missing", e);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * The outcome of a single access check.
+ */
+public enum AccessDecision {
+    /**
+     * The user holds the permission on the object through one of their roles.
+     */
+    GRANTED,
+    /**
+     * The user and object exist, but the permission is not held.
+     */
+    DENIED,
+    /**
+     * The user has never been given roles.
+     */
+    UNKNOWN_USER,
+    /**
+     * The object does not exist in the system.
+     */
+    UNKNOWN_OBJECT
+}
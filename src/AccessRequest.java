@@ -0,0 +1,40 @@
+/**
+ * A single (user, object, permission) access check, as submitted to
+ * RbacController in batches.
+ */
+public class AccessRequest {
+    private final RbacUser user;
+    private final RbacObject object;
+    private final RbacPermission permission;
+
+    /**
+     * Constructs a new access request.
+     *
+     * @param user       The user asking for access.
+     * @param object     The object to access.
+     * @param permission The permission needed on the object.
+     */
+    public AccessRequest (RbacUser user, RbacObject object,
+        RbacPermission permission) {
+        this.user = user;
+        this.object = object;
+        this.permission = permission;
+    }
+
+    public RbacUser getUser () {
+        return user;
+    }
+
+    public RbacObject getObject () {
+        return object;
+    }
+
+    public RbacPermission getPermission () {
+        return permission;
+    }
+
+    @Override
+    public String toString () {
+        return user + "\t" + object + "\t" + permission;
+    }
+}
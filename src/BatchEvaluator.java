@@ -0,0 +1,298 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Evaluates a stream of check requests without prompting, e.g. to replay a
+ * capture of production traffic. Each line is either TSV, {@code
+ * user<TAB>object<TAB>permission}, or a JSON object with "user", "object"
+ * and "permission" string fields, and is answered in the same format with
+ * the decision added. Every input line gets exactly one answer line, so
+ * answer N always belongs to request N: a blank line, a line that isn't a
+ * request or a token that can't be parsed is answered MALFORMED.
+ * <p>
+ * Reading, deciding and writing overlap: the input is cut into chunks of
+ * lines, the chunks are decided concurrently against the latest snapshot of
+ * a PolicyStore, and the answers are written in input order. At most a few
+ * chunks per thread are in flight, so memory stays bounded however long the
+ * stream is.
+ */
+public class BatchEvaluator {
+    private static final int CHUNK_LINES = 4096;
+
+    private final PolicyStore store;
+    private final int threads;
+    private final long[] decisions;
+    private long malformed;
+    private long nanos;
+
+    /**
+     * Constructs a new evaluator.
+     *
+     * @param store   The store holding the policy to check against.
+     * @param threads The number of threads deciding chunks.
+     */
+    public BatchEvaluator (PolicyStore store, int threads) {
+        this.store = store;
+        this.threads = Math.max(1, threads);
+        this.decisions = new long[AccessDecision.values().length];
+    }
+
+    /**
+     * Reads every request, decides it and writes the answers in order.
+     *
+     * @param in  The requests, one per line.
+     * @param out Where to write the answers, one per line.
+     * @throws IOException If reading or writing fails.
+     */
+    public void evaluate (BufferedReader in, Writer out) throws IOException {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        BlockingQueue<Future<Chunk>> pending =
+            new ArrayBlockingQueue<>(2 * threads);
+        Future<Chunk> endOfInput = CompletableFuture.completedFuture(null);
+        ExecutorService writerThread = Executors.newSingleThreadExecutor();
+        Future<IOException> writer = writerThread.submit(
+            () -> writeChunks(pending, endOfInput, out));
+
+        try {
+            List<String> lines = new ArrayList<>(CHUNK_LINES);
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+                if (lines.size() == CHUNK_LINES) {
+                    List<String> chunk = lines;
+                    pending.put(pool.submit(() -> decide(chunk)));
+                    lines = new ArrayList<>(CHUNK_LINES);
+                }
+            }
+            if (!lines.isEmpty()) {
+                List<String> chunk = lines;
+                pending.put(pool.submit(() -> decide(chunk)));
+            }
+            pending.put(endOfInput);
+            IOException failure = writer.get();
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch evaluation was interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Batch evaluation failed.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+            writerThread.shutdownNow();
+        }
+        nanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Describes how many requests were evaluated, their outcomes and the
+     * throughput, for the report printed after a run.
+     *
+     * @return The description.
+     */
+    public String getSummary () {
+        long total = malformed;
+        for (long count : decisions) {
+            total += count;
+        }
+        return String.format("Evaluated %d requests in %.1f ms (%.0f " +
+                "requests/sec) on %d threads: %d granted, %d denied, %d " +
+                "unknown user, %d unknown object, %d malformed.", total,
+            nanos / 1e6, nanos == 0 ? 0 : total * 1e9 / nanos, threads,
+            decisions[AccessDecision.GRANTED.ordinal()],
+            decisions[AccessDecision.DENIED.ordinal()],
+            decisions[AccessDecision.UNKNOWN_USER.ordinal()],
+            decisions[AccessDecision.UNKNOWN_OBJECT.ordinal()], malformed);
+    }
+
+    /**
+     * Writes decided chunks in the order they were queued, and tallies them.
+     * After a failure the remaining chunks are still taken, so the reader
+     * never blocks on a full queue, but no longer written.
+     *
+     * @param pending    The queued chunks.
+     * @param endOfInput The marker queued after the last chunk.
+     * @param out        Where to write.
+     * @return The first failure, or {@code null}.
+     * @throws InterruptedException If interrupted while waiting for a chunk.
+     */
+    private IOException writeChunks (BlockingQueue<Future<Chunk>> pending,
+        Future<Chunk> endOfInput, Writer out) throws InterruptedException {
+        IOException failure = null;
+        while (true) {
+            Future<Chunk> next = pending.take();
+            if (next == endOfInput) {
+                break;
+            }
+            if (failure != null) {
+                continue;
+            }
+            try {
+                Chunk chunk = next.get();
+                out.write(chunk.text.toString());
+                for (int i = 0; i < decisions.length; i++) {
+                    decisions[i] += chunk.decisions[i];
+                }
+                malformed += chunk.malformed;
+            } catch (IOException e) {
+                failure = e;
+            } catch (ExecutionException e) {
+                failure = new IOException("Deciding a chunk failed.",
+                    e.getCause());
+            }
+        }
+        if (failure == null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * Decides every request in a chunk against one snapshot.
+     *
+     * @param lines The chunk's lines.
+     * @return The answers.
+     */
+    private Chunk decide (List<String> lines) {
+        PolicySnapshot snapshot = store.current();
+        Chunk chunk = new Chunk(lines.size());
+        for (String line : lines) {
+            String trimmed = line.trim();
+            boolean json = !trimmed.isEmpty() && trimmed.charAt(0) == '{';
+            String user;
+            String object;
+            String permission;
+            if (json) {
+                user = jsonField(trimmed, "user");
+                object = jsonField(trimmed, "object");
+                permission = jsonField(trimmed, "permission");
+            } else {
+                String[] fields = trimmed.split("\\s+");
+                user = fields.length == 3 ? fields[0] : null;
+                object = fields.length == 3 ? fields[1] : null;
+                permission = fields.length == 3 ? fields[2] : null;
+            }
+
+            AccessDecision decision = null;
+            if (user != null && object != null && permission != null) {
+                try {
+                    decision = snapshot.check(user, object, permission);
+                } catch (IllegalArgumentException e) {
+                    // A token that doesn't parse, e.g. a number too large.
+                }
+            }
+            String answer;
+            if (decision == null) {
+                chunk.malformed++;
+                answer = "MALFORMED";
+            } else {
+                chunk.decisions[decision.ordinal()]++;
+                answer = decision.name();
+            }
+            if (json) {
+                int end = trimmed.lastIndexOf('}');
+                chunk.text.append(trimmed, 0, end < 0 ? trimmed.length() : end)
+                    .append(trimmed.length() > 2 ? "," : "")
+                    .append("\"decision\":\"").append(answer).append("\"}\n");
+            } else {
+                chunk.text.append(trimmed).append('\t').append(answer)
+                    .append('\n');
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Gives the value of a string field of a flat JSON object. Enough for
+     * request lines; nested values aren't supported.
+     *
+     * @param json  The JSON object.
+     * @param field The field's name.
+     * @return The unescaped value, or {@code null} if the field is missing
+     * or isn't a string.
+     */
+    static String jsonField (String json, String field) {
+        String key = "\"" + field + "\"";
+        int at = json.indexOf(key);
+        while (at >= 0) {
+            int i = at + key.length();
+            while (i < json.length() &&
+                Character.isWhitespace(json.charAt(i))) {
+                i++;
+            }
+            if (i < json.length() && json.charAt(i) == ':') {
+                i++;
+                while (i < json.length() &&
+                    Character.isWhitespace(json.charAt(i))) {
+                    i++;
+                }
+                return i < json.length() && json.charAt(i) == '"' ?
+                    jsonString(json, i + 1) : null;
+            }
+            at = json.indexOf(key, at + 1);
+        }
+        return null;
+    }
+
+    private static String jsonString (String json, int start) {
+        StringBuilder value = new StringBuilder();
+        for (int i = start; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\' || i + 1 == json.length()) {
+                value.append(c);
+                continue;
+            }
+            char escaped = json.charAt(++i);
+            switch (escaped) {
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 'u':
+                    if (i + 4 >= json.length()) {
+                        return null;
+                    }
+                    try {
+                        value.append((char)Integer.parseInt(
+                            json.substring(i + 1, i + 5), 16));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                    i += 4;
+                    break;
+                default:
+                    value.append(escaped);
+            }
+        }
+        return null;
+    }
+
+    private static class Chunk {
+        private final StringBuilder text;
+        private final long[] decisions;
+        private long malformed;
+
+        private Chunk (int lines) {
+            this.text = new StringBuilder(lines * 32);
+            this.decisions = new long[AccessDecision.values().length];
+        }
+    }
+}
@@ -0,0 +1,331 @@
+import java.util.*;
+
+/**
+ * A frozen, read-only form of a RoleObjectMatrix for serving access checks.
+ * For every (role, permission) pair that is granted at least once it keeps a
+ * bitmap over object ids, so a check is three array reads and a mask. Ids
+ * are the dense ids handed out by each element type's symbol table. After a
+ * few changes to the matrix, a new compiled form can be derived from the
+ * previous one, sharing every role's row and bitmap that didn't change.
+ * <p>
+ * Wildcard permissions such as {@code write*} are also kept as a trie per
+ * (role, object), so a permission missing from the bitmaps, including one
+ * interned after compiling, is still granted when a wildcard held on the
+ * object matches it.
+ */
+public class CompiledRoleObjectMatrix {
+    private final long[] roles;
+    private final long[] objects;
+    private final long[][][] objectBits;
+    private final PermissionTrie[][] wildcards;
+
+    /**
+     * Compiles a snapshot of a RoleObjectMatrix. Later changes to the matrix
+     * are not reflected; compile again to pick them up.
+     *
+     * @param matrix The matrix to compile.
+     */
+    public CompiledRoleObjectMatrix (RoleObjectMatrix matrix) {
+        Set<RbacRole> matrixRoles = matrix.getRoles();
+        Set<RbacObject> matrixObjects = matrix.getObjects();
+
+        int roleCount = RbacRole.SYMBOLS.size();
+        this.roles = new long[wordsFor(roleCount)];
+        this.objects = new long[wordsFor(RbacObject.SYMBOLS.size())];
+        this.objectBits = new long[roleCount][][];
+        this.wildcards = new PermissionTrie[roleCount][];
+
+        for (RbacObject object : matrixObjects) {
+            setBit(objects, idOf(object));
+        }
+        for (RbacRole role : matrixRoles) {
+            int roleId = idOf(role);
+            setBit(roles, roleId);
+            for (RbacObject object : matrixObjects) {
+                int objectId = idOf(object);
+                for (RbacPermission permission : matrix
+                    .getObjectPermissionsForRole(role, object)) {
+                    if (objectBits[roleId] == null) {
+                        objectBits[roleId] =
+                            new long[RbacPermission.SYMBOLS.size()][];
+                    }
+                    int permissionId = idOf(permission);
+                    if (objectBits[roleId][permissionId] == null) {
+                        objectBits[roleId][permissionId] =
+                            new long[objects.length];
+                    }
+                    setBit(objectBits[roleId][permissionId], objectId);
+                }
+                PermissionTrie patterns = matrix.getWildcards(role, object);
+                if (patterns != null) {
+                    if (wildcards[roleId] == null) {
+                        wildcards[roleId] =
+                            new PermissionTrie[RbacObject.SYMBOLS.size()];
+                    }
+                    wildcards[roleId][objectId] = new PermissionTrie(patterns);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles a RoleObjectMatrix again after a few changes, starting from
+     * its previous compiled form. Only the bitmaps and wildcard tries of
+     * changed cells are copied and rewritten; everything else is shared with
+     * the previous form, which stays valid and unchanged.
+     *
+     * @param previous The matrix as compiled before the changes.
+     * @param matrix   The changed matrix.
+     * @param changes  The changes made since previous was compiled.
+     */
+    public CompiledRoleObjectMatrix (CompiledRoleObjectMatrix previous,
+        RoleObjectMatrix matrix, PolicyChangeSet changes) {
+        int roleCount = Math.max(previous.objectBits.length,
+            RbacRole.SYMBOLS.size());
+        if (changes.isHierarchyChanged()) {
+            this.roles = new long[wordsFor(roleCount)];
+            for (RbacRole role : matrix.getRoles()) {
+                setBit(roles, idOf(role));
+            }
+        } else {
+            this.roles = previous.roles;
+        }
+        if (changes.getAddedObjects().isEmpty()) {
+            this.objects = previous.objects;
+        } else {
+            this.objects = Arrays.copyOf(previous.objects,
+                Math.max(previous.objects.length,
+                    wordsFor(RbacObject.SYMBOLS.size())));
+            for (RbacObject object : changes.getAddedObjects()) {
+                setBit(objects, idOf(object));
+            }
+        }
+        this.objectBits = Arrays.copyOf(previous.objectBits, roleCount);
+        this.wildcards = Arrays.copyOf(previous.wildcards, roleCount);
+
+        Set<Object> copied = Collections.newSetFromMap(
+            new IdentityHashMap<>());
+        for (Map.Entry<RbacRole, Set<RbacObject>> cells :
+            changes.getChangedCells().entrySet()) {
+            RbacRole role = cells.getKey();
+            int roleId = idOf(role);
+            for (RbacObject object : cells.getValue()) {
+                recompileCell(matrix, role, roleId, object, copied);
+            }
+        }
+    }
+
+    /**
+     * Brings one cell's bits and wildcard trie in line with the matrix,
+     * copying each row, bitmap and wildcard row before its first write.
+     *
+     * @param matrix The changed matrix.
+     * @param role   The cell's role.
+     * @param roleId The role's id.
+     * @param object The cell's object.
+     * @param copied The arrays already copied for this compilation.
+     */
+    private void recompileCell (RoleObjectMatrix matrix, RbacRole role,
+        int roleId, RbacObject object, Set<Object> copied) {
+        int objectId = idOf(object);
+        Set<RbacPermission> held = matrix.getRoles().contains(role) ?
+            matrix.getObjectPermissionsForRole(role, object) :
+            Collections.emptySet();
+
+        long[][] row = objectBits[roleId];
+        for (int p = 0; row != null && p < row.length; p++) {
+            if (testBit(row[p], objectId) &&
+                !held.contains(RbacPermission.SYMBOLS.get(p))) {
+                row = writableRow(roleId, copied);
+                writableBits(row, p, copied)[objectId >>> 6] &=
+                    ~(1L << objectId);
+            }
+        }
+        for (RbacPermission permission : held) {
+            int permissionId = idOf(permission);
+            if (row == null || permissionId >= row.length ||
+                !testBit(row[permissionId], objectId)) {
+                row = writableRow(roleId, copied);
+                setBit(writableBits(row, permissionId, copied), objectId);
+            }
+        }
+
+        PermissionTrie patterns = held.isEmpty() ? null :
+            matrix.getWildcards(role, object);
+        PermissionTrie[] wildcardRow = wildcards[roleId];
+        if (patterns == null && (wildcardRow == null ||
+            objectId >= wildcardRow.length || wildcardRow[objectId] == null)) {
+            return;
+        }
+        if (!copied.contains(wildcardRow)) {
+            wildcardRow = wildcardRow == null ?
+                new PermissionTrie[RbacObject.SYMBOLS.size()] :
+                Arrays.copyOf(wildcardRow, Math.max(wildcardRow.length,
+                    RbacObject.SYMBOLS.size()));
+            wildcards[roleId] = wildcardRow;
+            copied.add(wildcardRow);
+        }
+        wildcardRow[objectId] = patterns == null ? null :
+            new PermissionTrie(patterns);
+    }
+
+    /**
+     * Gives a role's row of bitmaps, copied and grown to every permission
+     * if this compilation hasn't written to it yet.
+     *
+     * @param roleId The role's id.
+     * @param copied The arrays already copied for this compilation.
+     * @return The row, safe to write to.
+     */
+    private long[][] writableRow (int roleId, Set<Object> copied) {
+        long[][] row = objectBits[roleId];
+        if (copied.contains(row)) {
+            return row;
+        }
+        int permissionCount = RbacPermission.SYMBOLS.size();
+        row = row == null ? new long[permissionCount][] :
+            Arrays.copyOf(row, Math.max(row.length, permissionCount));
+        objectBits[roleId] = row;
+        copied.add(row);
+        return row;
+    }
+
+    /**
+     * Gives one bitmap of a writable row, copied and grown to every object
+     * if this compilation hasn't written to it yet.
+     *
+     * @param row          The writable row.
+     * @param permissionId The bitmap's permission id.
+     * @param copied       The arrays already copied for this compilation.
+     * @return The bitmap, safe to write to.
+     */
+    private long[] writableBits (long[][] row, int permissionId,
+        Set<Object> copied) {
+        long[] bits = row[permissionId];
+        if (copied.contains(bits)) {
+            return bits;
+        }
+        bits = bits == null ? new long[objects.length] :
+            Arrays.copyOf(bits, Math.max(bits.length, objects.length));
+        row[permissionId] = bits;
+        copied.add(bits);
+        return bits;
+    }
+
+    /**
+     * Checks if a role holds a permission on an object.
+     *
+     * @param role       The role to check.
+     * @param object     The object to check.
+     * @param permission The permission to check.
+     * @return true if the permission is granted, directly or inherited.
+     */
+    public boolean hasPermission (RbacRole role, RbacObject object,
+        RbacPermission permission) {
+        return hasPermission(idOf(role), idOf(object), idOf(permission));
+    }
+
+    /**
+     * Checks if a role holds a permission on an object, by id.
+     *
+     * @param roleId       The role's id.
+     * @param objectId     The object's id.
+     * @param permissionId The permission's id.
+     * @return true if the permission is granted, directly or inherited;
+     * false for an id no element was interned under.
+     */
+    public boolean hasPermission (int roleId, int objectId,
+        int permissionId) {
+        if (roleId < 0 || roleId >= objectBits.length || permissionId < 0) {
+            return false;
+        }
+        long[][] row = objectBits[roleId];
+        if (row != null && permissionId < row.length &&
+            testBit(row[permissionId], objectId)) {
+            return true;
+        }
+        if (wildcards[roleId] == null) {
+            return false;
+        }
+        RbacPermission permission = RbacPermission.SYMBOLS.get(permissionId);
+        return permission != null && matchesWildcard(roleId, objectId,
+            permission.toString());
+    }
+
+    /**
+     * Checks if a wildcard permission a role holds on an object matches a
+     * permission, given by its canonical text so permissions never interned
+     * can be checked too.
+     *
+     * @param roleId     The role's id.
+     * @param objectId   The object's id.
+     * @param permission The permission's canonical text.
+     * @return true if a wildcard matches.
+     */
+    public boolean matchesWildcard (int roleId, int objectId,
+        String permission) {
+        if (roleId < 0 || roleId >= wildcards.length ||
+            wildcards[roleId] == null ||
+            objectId < 0 || objectId >= wildcards[roleId].length) {
+            return false;
+        }
+        PermissionTrie patterns = wildcards[roleId][objectId];
+        return patterns != null && patterns.matches(permission);
+    }
+
+    /**
+     * Checks if a role existed in the matrix when it was compiled.
+     *
+     * @param role The role to check.
+     * @return true if the role exists.
+     */
+    public boolean hasRole (RbacRole role) {
+        return testBit(roles, idOf(role));
+    }
+
+    /**
+     * Checks if an object existed in the matrix when it was compiled.
+     *
+     * @param object The object to check.
+     * @return true if the object exists.
+     */
+    public boolean hasObject (RbacObject object) {
+        return testBit(objects, idOf(object));
+    }
+
+    /**
+     * Checks if an object existed in the matrix when it was compiled, by id.
+     *
+     * @param objectId The object's id.
+     * @return true if the object exists.
+     */
+    public boolean hasObject (int objectId) {
+        return testBit(objects, objectId);
+    }
+
+    static int idOf (RbacRole role) {
+        return role.id >= 0 ? role.id : RbacRole.SYMBOLS.idOf(role);
+    }
+
+    static int idOf (RbacObject object) {
+        return object.id >= 0 ? object.id : RbacObject.SYMBOLS.idOf(object);
+    }
+
+    static int idOf (RbacPermission permission) {
+        return permission.id >= 0 ? permission.id :
+            RbacPermission.SYMBOLS.idOf(permission);
+    }
+
+    static int wordsFor (int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    static void setBit (long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    static boolean testBit (long[] bits, int index) {
+        return bits != null && index >= 0 && (index >>> 6) < bits.length &&
+            (bits[index >>> 6] & (1L << index)) != 0;
+    }
+}
@@ -0,0 +1,308 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of access decisions keyed on (user, object, permission).
+ * Every change to the policy bumps a version, and entries decided under an
+ * older version are treated as misses, so a stale decision is never served.
+ * <p>
+ * Two eviction policies are offered. LRU evicts the least recently used
+ * entry. TINY_LFU keeps a small LRU window for new entries in front of a
+ * main LRU region; an entry leaving the window only displaces the main
+ * region's least recently used entry if that entry is stale or a frequency
+ * sketch says the newcomer has been asked for more often, so a burst of
+ * one-off checks can't flush the entries that are asked for all the time.
+ */
+public class DecisionCache implements PolicyChangeListener {
+    private static final int SKETCH_DEPTH = 4;
+    private static final int MAX_FREQUENCY = 15;
+    private static final int ID_BITS = 21;
+    private static final int ID_LIMIT = 1 << ID_BITS;
+
+    /**
+     * How a full cache picks the entry to drop.
+     */
+    public enum Eviction {
+        LRU,
+        TINY_LFU
+    }
+
+    private final int capacity;
+    private final Eviction eviction;
+    private final AtomicLong version;
+    private final LinkedHashMap<Long, Entry> window;
+    private final LinkedHashMap<Long, Entry> main;
+    private final int windowCapacity;
+    private final int mainCapacity;
+    private final int[] sketch;
+    private final int sketchMask;
+    private int sketchAdditions;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Constructs a new empty cache.
+     *
+     * @param capacity The maximum number of decisions held.
+     * @param eviction The eviction policy.
+     */
+    public DecisionCache (int capacity, Eviction eviction) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.eviction = eviction;
+        this.version = new AtomicLong();
+        this.window = new LinkedHashMap<>(16, 0.75f, true);
+        this.main = new LinkedHashMap<>(16, 0.75f, true);
+        if (eviction == Eviction.TINY_LFU && capacity > 1) {
+            this.windowCapacity = Math.max(1, capacity / 100);
+            int width = Integer.highestOneBit(Math.max(16, capacity) * 2);
+            this.sketch = new int[SKETCH_DEPTH * width];
+            this.sketchMask = width - 1;
+        } else {
+            this.windowCapacity = 0;
+            this.sketch = null;
+            this.sketchMask = 0;
+        }
+        this.mainCapacity = capacity - windowCapacity;
+    }
+
+    /**
+     * Gives the cache key for a check, packing the three ids into a long,
+     * 21 bits each, so about two million of each element are cached.
+     *
+     * @param user       The user.
+     * @param object     The object.
+     * @param permission The permission.
+     * @return The key, or -1 if an element was never interned or its id is
+     * too large to pack, in which case the check isn't cached.
+     */
+    static long keyOf (RbacUser user, RbacObject object,
+        RbacPermission permission) {
+        int userId = user.id >= 0 ? user.id : RbacUser.SYMBOLS.idOf(user);
+        int objectId = CompiledRoleObjectMatrix.idOf(object);
+        int permissionId = CompiledRoleObjectMatrix.idOf(permission);
+        if ((userId | objectId | permissionId) < 0 || userId >= ID_LIMIT ||
+            objectId >= ID_LIMIT || permissionId >= ID_LIMIT) {
+            return -1;
+        }
+        return ((long)userId << (2 * ID_BITS)) |
+            ((long)objectId << ID_BITS) | permissionId;
+    }
+
+    /**
+     * Gives the current policy version. Read it before deciding a check and
+     * pass it to put, so a decision racing a change is not kept.
+     *
+     * @return The policy version.
+     */
+    public long getPolicyVersion () {
+        return version.get();
+    }
+
+    /**
+     * Gives the cached decision for a key, if it is still current.
+     *
+     * @param key The key from keyOf.
+     * @return The decision, or {@code null} on a miss.
+     */
+    public synchronized AccessDecision get (long key) {
+        Long boxed = key;
+        recordAccess(key);
+        Entry entry = window.get(boxed);
+        if (entry == null) {
+            entry = main.get(boxed);
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.version != version.get()) {
+            window.remove(boxed);
+            main.remove(boxed);
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.decision;
+    }
+
+    /**
+     * Caches a decision, unless the policy changed since it was decided.
+     *
+     * @param key      The key from keyOf.
+     * @param decision The decision.
+     * @param version  The policy version the decision was made under.
+     */
+    public synchronized void put (long key, AccessDecision decision,
+        long version) {
+        if (version != this.version.get()) {
+            return;
+        }
+        Long boxed = key;
+        Entry entry = new Entry(decision, version);
+        if (main.containsKey(boxed)) {
+            main.put(boxed, entry);
+            return;
+        }
+        if (sketch == null) {
+            main.put(boxed, entry);
+            if (main.size() > mainCapacity) {
+                removeEldest(main);
+                evictions++;
+            }
+            return;
+        }
+
+        window.put(boxed, entry);
+        if (window.size() <= windowCapacity) {
+            return;
+        }
+        Map.Entry<Long, Entry> candidate = removeEldest(window);
+        if (main.size() < mainCapacity) {
+            main.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+        Map.Entry<Long, Entry> victim = main.entrySet().iterator().next();
+        if (victim.getValue().version != this.version.get() ||
+            frequency(candidate.getKey()) > frequency(victim.getKey())) {
+            main.remove(victim.getKey());
+            main.put(candidate.getKey(), candidate.getValue());
+        }
+        evictions++;
+    }
+
+    /**
+     * Drops every cached decision. Statistics are kept.
+     */
+    public synchronized void clear () {
+        window.clear();
+        main.clear();
+    }
+
+    public synchronized int size () {
+        return window.size() + main.size();
+    }
+
+    public int getCapacity () {
+        return capacity;
+    }
+
+    public Eviction getEviction () {
+        return eviction;
+    }
+
+    public synchronized long getHitCount () {
+        return hits;
+    }
+
+    public synchronized long getMissCount () {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount () {
+        return evictions;
+    }
+
+    /**
+     * Gives the share of lookups answered from the cache.
+     *
+     * @return The hit rate, from 0 to 1, or 0 if nothing was looked up.
+     */
+    public synchronized double getHitRate () {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double)hits / lookups;
+    }
+
+    @Override
+    public synchronized String toString () {
+        return String.format("Decision cache (%s, %d/%d): %d hits, %d " +
+                "misses, %.1f%% hit rate, %d evictions, policy version %d",
+            eviction, size(), capacity, hits, misses, getHitRate() * 100,
+            evictions, version.get());
+    }
+
+    @Override
+    public void permissionsChanged (RbacRole role, RbacObject object) {
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void objectAdded (RbacObject object) {
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void userRolesChanged (RbacUser user) {
+        version.incrementAndGet();
+    }
+
+    private static Map.Entry<Long, Entry> removeEldest (
+        LinkedHashMap<Long, Entry> map) {
+        Iterator<Map.Entry<Long, Entry>> iterator =
+            map.entrySet().iterator();
+        Map.Entry<Long, Entry> eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+
+    /**
+     * Counts an access in the frequency sketch. Once the sketch has seen ten
+     * times the capacity in accesses every counter is halved, so old
+     * popularity fades.
+     *
+     * @param key The key accessed.
+     */
+    private void recordAccess (long key) {
+        if (sketch == null) {
+            return;
+        }
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            int slot = sketchSlot(key, row);
+            if (sketch[slot] < MAX_FREQUENCY) {
+                sketch[slot]++;
+            }
+        }
+        if (++sketchAdditions >= 10 * capacity) {
+            for (int i = 0; i < sketch.length; i++) {
+                sketch[i] >>>= 1;
+            }
+            sketchAdditions = 0;
+        }
+    }
+
+    /**
+     * Estimates how often a key was accessed as the smallest of its counters.
+     *
+     * @param key The key.
+     * @return The estimated frequency.
+     */
+    private int frequency (long key) {
+        int frequency = MAX_FREQUENCY;
+        for (int row = 0; row < SKETCH_DEPTH; row++) {
+            frequency = Math.min(frequency, sketch[sketchSlot(key, row)]);
+        }
+        return frequency;
+    }
+
+    private int sketchSlot (long key, int row) {
+        long hash = (key + row) * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 29;
+        return row * (sketchMask + 1) + (int)(hash & sketchMask);
+    }
+
+    private static class Entry {
+        private final AccessDecision decision;
+        private final long version;
+
+        private Entry (AccessDecision decision, long version) {
+            this.decision = decision;
+            this.version = version;
+        }
+    }
+}
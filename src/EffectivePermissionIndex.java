@@ -0,0 +1,235 @@
+import java.util.*;
+
+/**
+ * A materialized index of the permissions each user holds on each object,
+ * so a check is a single lookup instead of a union over the user's roles.
+ * Users sharing the same set of roles share one row of the index, which keeps
+ * its size proportional to the number of distinct role sets rather than the
+ * number of users.
+ * <p>
+ * The index is kept current incrementally through PolicyChangeListener:
+ * only the rows containing a changed role, or the row of a changed user, are
+ * touched.
+ * <p>
+ * Wildcard permissions such as {@code write*} held through a row's roles are
+ * merged into one trie per (row, object), consulted when a permission isn't
+ * in the cell's bitmap.
+ */
+public class EffectivePermissionIndex implements PolicyChangeListener {
+    private static final int REFERENCE_BYTES = 4;
+    private static final int OBJECT_HEADER_BYTES = 16;
+    private static final int MAP_ENTRY_BYTES = 48;
+
+    private final RoleObjectMatrix roleObjectMatrix;
+    private final UserRoleMatrix userRoleMatrix;
+
+    private Map<Set<RbacRole>, Integer> roleSetIds;
+    private List<Set<RbacRole>> roleSets;
+    private List<BitSet[]> rows;
+    private List<PermissionTrie[]> wildcardRows;
+    private Map<RbacRole, Set<Integer>> roleSetsPerRole;
+    private int[] roleSetOfUser;
+
+    /**
+     * Builds the index for every user currently in the user-role matrix.
+     *
+     * @param roleObjectMatrix The role-object matrix permissions come from.
+     * @param userRoleMatrix   The user-role matrix roles come from.
+     */
+    public EffectivePermissionIndex (RoleObjectMatrix roleObjectMatrix,
+        UserRoleMatrix userRoleMatrix) {
+        this.roleObjectMatrix = roleObjectMatrix;
+        this.userRoleMatrix = userRoleMatrix;
+        this.roleSetIds = new HashMap<>();
+        this.roleSets = new ArrayList<>();
+        this.rows = new ArrayList<>();
+        this.wildcardRows = new ArrayList<>();
+        this.roleSetsPerRole = new HashMap<>();
+        this.roleSetOfUser = new int[RbacUser.SYMBOLS.size()];
+        Arrays.fill(roleSetOfUser, -1);
+
+        for (RbacUser user : userRoleMatrix.getUsers()) {
+            userRolesChanged(user);
+        }
+    }
+
+    /**
+     * Checks if a user holds a permission on an object through any of their
+     * roles.
+     *
+     * @param user       The user to check.
+     * @param object     The object to check.
+     * @param permission The permission to check.
+     * @return true if the permission is granted, false otherwise or if the
+     * user or object is unknown.
+     */
+    public boolean hasPermission (RbacUser user, RbacObject object,
+        RbacPermission permission) {
+        int userId = user.id >= 0 ? user.id : RbacUser.SYMBOLS.idOf(user);
+        if (userId < 0 || userId >= roleSetOfUser.length ||
+            roleSetOfUser[userId] < 0) {
+            return false;
+        }
+        BitSet[] row = rows.get(roleSetOfUser[userId]);
+        int objectId = CompiledRoleObjectMatrix.idOf(object);
+        int permissionId = CompiledRoleObjectMatrix.idOf(permission);
+        if (objectId < 0 || objectId >= row.length) {
+            return false;
+        }
+        BitSet cell = row[objectId];
+        if (cell != null && permissionId >= 0 && cell.get(permissionId)) {
+            return true;
+        }
+        PermissionTrie[] wildcardRow =
+            wildcardRows.get(roleSetOfUser[userId]);
+        return wildcardRow != null && objectId < wildcardRow.length &&
+            wildcardRow[objectId] != null &&
+            wildcardRow[objectId].matches(permission.toString());
+    }
+
+    /**
+     * Gives the number of distinct role sets, and so rows, in this index.
+     *
+     * @return The number of rows.
+     */
+    public int getRowCount () {
+        return rows.size();
+    }
+
+    /**
+     * Estimates the heap this index occupies, assuming compressed object
+     * references. Use it to decide whether a deployment should enable the
+     * index.
+     *
+     * @return The estimated size in bytes.
+     */
+    public long estimateMemoryBytes () {
+        long bytes = OBJECT_HEADER_BYTES +
+            (long)roleSetOfUser.length * Integer.BYTES;
+        for (BitSet[] row : rows) {
+            bytes += OBJECT_HEADER_BYTES + (long)row.length * REFERENCE_BYTES;
+            for (BitSet cell : row) {
+                if (cell != null) {
+                    bytes += 2 * OBJECT_HEADER_BYTES + 8 +
+                        (cell.size() / Long.SIZE) * Long.BYTES;
+                }
+            }
+        }
+        for (Set<RbacRole> roleSet : roleSets) {
+            bytes += 2 * MAP_ENTRY_BYTES + roleSet.size() * MAP_ENTRY_BYTES;
+        }
+        for (Set<Integer> ids : roleSetsPerRole.values()) {
+            bytes += MAP_ENTRY_BYTES + ids.size() * MAP_ENTRY_BYTES;
+        }
+        return bytes;
+    }
+
+    @Override
+    public void permissionsChanged (RbacRole role, RbacObject object) {
+        Set<Integer> affected = roleSetsPerRole.get(role);
+        if (affected == null) {
+            return;
+        }
+        int objectId = CompiledRoleObjectMatrix.idOf(object);
+        for (int roleSetId : affected) {
+            rebuildCell(roleSetId, objectId, object);
+        }
+    }
+
+    @Override
+    public void userRolesChanged (RbacUser user) {
+        int userId = RbacUser.SYMBOLS.intern(user).id;
+        if (userId >= roleSetOfUser.length) {
+            int oldLength = roleSetOfUser.length;
+            roleSetOfUser = Arrays.copyOf(roleSetOfUser,
+                Math.max(userId + 1, oldLength * 2));
+            Arrays.fill(roleSetOfUser, oldLength, roleSetOfUser.length, -1);
+        }
+        Set<RbacRole> roles = userRoleMatrix.getUsers().contains(user) ?
+            userRoleMatrix.getRoles(user) : null;
+        roleSetOfUser[userId] = roles == null ? -1 : getRoleSetId(roles);
+    }
+
+    /**
+     * Gives the row for a set of roles, materializing it if it is new.
+     *
+     * @param roles The set of roles.
+     * @return The row's id.
+     */
+    private int getRoleSetId (Set<RbacRole> roles) {
+        Integer existing = roleSetIds.get(roles);
+        if (existing != null) {
+            return existing;
+        }
+
+        int roleSetId = rows.size();
+        Set<RbacRole> key = Collections.unmodifiableSet(new HashSet<>(roles));
+        roleSetIds.put(key, roleSetId);
+        roleSets.add(key);
+        rows.add(new BitSet[RbacObject.SYMBOLS.size()]);
+        wildcardRows.add(null);
+        for (RbacRole role : key) {
+            roleSetsPerRole.computeIfAbsent(role, k -> new HashSet<>())
+                .add(roleSetId);
+        }
+        for (RbacObject object : roleObjectMatrix.getObjects()) {
+            rebuildCell(roleSetId, CompiledRoleObjectMatrix.idOf(object),
+                object);
+        }
+        return roleSetId;
+    }
+
+    /**
+     * Recomputes one cell as the union of the permissions every role in the
+     * row's set holds on the object.
+     *
+     * @param roleSetId The row.
+     * @param objectId  The object's id.
+     * @param object    The object.
+     */
+    private void rebuildCell (int roleSetId, int objectId, RbacObject object) {
+        BitSet[] row = rows.get(roleSetId);
+        if (objectId >= row.length) {
+            row = Arrays.copyOf(row, Math.max(objectId + 1,
+                RbacObject.SYMBOLS.size()));
+            rows.set(roleSetId, row);
+        }
+
+        BitSet cell = null;
+        PermissionTrie patterns = null;
+        for (RbacRole role : roleSets.get(roleSetId)) {
+            if (!roleObjectMatrix.getRoles().contains(role)) {
+                continue;
+            }
+            for (RbacPermission permission : roleObjectMatrix
+                .getObjectPermissionsForRole(role, object)) {
+                if (cell == null) {
+                    cell = new BitSet();
+                }
+                cell.set(CompiledRoleObjectMatrix.idOf(permission));
+            }
+            PermissionTrie roleWildcards =
+                roleObjectMatrix.getWildcards(role, object);
+            if (roleWildcards != null) {
+                if (patterns == null) {
+                    patterns = new PermissionTrie();
+                }
+                for (RbacPermission pattern : roleWildcards.getPatterns()) {
+                    patterns.add(pattern);
+                }
+            }
+        }
+        row[objectId] = cell;
+
+        PermissionTrie[] wildcardRow = wildcardRows.get(roleSetId);
+        if (patterns != null && (wildcardRow == null ||
+            objectId >= wildcardRow.length)) {
+            wildcardRow = wildcardRow == null ? new PermissionTrie[row.length] :
+                Arrays.copyOf(wildcardRow, row.length);
+            wildcardRows.set(roleSetId, wildcardRow);
+        }
+        if (wildcardRow != null && objectId < wildcardRow.length) {
+            wildcardRow[objectId] = patterns;
+        }
+    }
+}
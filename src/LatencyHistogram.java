@@ -0,0 +1,135 @@
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of non-negative values, such as latencies in
+ * nanoseconds, in the style of an HDR histogram. Values are counted in
+ * buckets that split every power of two into eight, so any recorded value
+ * is reported within 12.5% while the whole range of a long fits in under
+ * 500 buckets. Recording is a few striped counter increments and never
+ * allocates once a bucket is in use.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final LongAdder[] counts;
+    private final LongAdder total;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    /**
+     * Constructs a new empty histogram.
+     */
+    public LatencyHistogram () {
+        this.counts = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+        this.total = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Records one value. Negative values are recorded as 0.
+     *
+     * @param value The value.
+     */
+    public void record (long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucketOf(value)].increment();
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount () {
+        return total.sum();
+    }
+
+    public long getMax () {
+        return max.get();
+    }
+
+    /**
+     * Gives the mean of the recorded values.
+     *
+     * @return The mean, or 0 if nothing was recorded.
+     */
+    public double getMean () {
+        long count = total.sum();
+        return count == 0 ? 0 : (double)sum.sum() / count;
+    }
+
+    /**
+     * Gives the value below which a share of the recorded values fall, as
+     * the upper bound of the bucket holding it.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return The value, or 0 if nothing was recorded.
+     */
+    public long getPercentile (double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets every recorded value.
+     */
+    public void reset () {
+        for (LongAdder count : counts) {
+            count.reset();
+        }
+        total.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    @Override
+    public String toString () {
+        return String.format("count=%d mean=%.1f p50=%d p99=%d p99.9=%d " +
+                "max=%d", getCount(), getMean(), getPercentile(50),
+            getPercentile(99), getPercentile(99.9), getMax());
+    }
+
+    private static int bucketOf (long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) &
+            (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf (int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) +
+            width - 1;
+    }
+}
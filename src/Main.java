@@ -1,18 +1,190 @@
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
+import javax.management.JMException;
 
 public class Main {
+    private static final String IMAGE_FILE = "policy.img";
+    private static final int SERVER_PORT = 7474;
+    private static final List<String> SOURCE_FILES = Arrays.asList(
+        "roleHierarchy.txt", "resourceObjects.txt", "permissionsToRoles.txt",
+        "roleSetsSSD.txt", "userRoles.txt");
 
     public static void main (String[] args) throws IOException {
-        RoleObjectMatrix roleObjectMatrix = initializeRoleObjectMatrix();
-        Set<RbacRole> roles = roleObjectMatrix.getRoles();
-        UserRoleMatrix userRoleMatrix = initializeUserRoleMatrix(roles);
+        boolean serve = args.length > 0 && args[0].equals("--serve");
+        boolean export = args.length >= 4 && args[0].equals("--export");
+        boolean batch = args.length > 0 && args[0].equals("--batch");
+        boolean compile = args.length > 0 &&
+            args[0].equals("--compile-image");
+        // Only a user at the terminal can fix a policy file and go on; every
+        // other mode fails the load, so a bad file can't eat a request
+        // stream on stdin or spin on an empty one.
+        PolicyFileReader.setInteractive(!serve && !export && !batch &&
+            !compile);
+        if (compile) {
+            compileImage(args.length > 1 ? args[1] : IMAGE_FILE);
+            return;
+        }
+        PrintStream stdout = System.out;
+        if (batch) {
+            // Keep the results alone on stdout; loading reports on stderr.
+            System.setOut(System.err);
+        }
+
+        // Registered even while disabled, so metrics can be switched on
+        // over JMX in a running process.
+        RbacMetrics metrics = RbacMetrics.getInstance();
+        try {
+            metrics.register();
+        } catch (JMException e) {
+            System.err.printf("Metrics could not be registered over " +
+                "JMX: %s%n", e.getMessage());
+        }
+
+        int journalArg = Arrays.asList(args).indexOf("--journal");
+        PolicyJournal journal = null;
+        PolicyImage image = null;
+        if (serve && journalArg > 0 && journalArg + 1 < args.length) {
+            journal = new PolicyJournal(args[journalArg + 1], SOURCE_FILES);
+            image = journal.recover();
+        }
+
+        RoleObjectMatrix roleObjectMatrix;
+        UserRoleMatrix userRoleMatrix;
+        long start = System.nanoTime();
+        if (image == null) {
+            image = PolicyImage.load(IMAGE_FILE, SOURCE_FILES);
+            if (image != null) {
+                System.out.printf("Loaded policy image %s in %.1f ms.%n",
+                    IMAGE_FILE, (System.nanoTime() - start) / 1e6);
+            }
+        }
+        if (image != null) {
+            roleObjectMatrix = image.getRoleObjectMatrix();
+            userRoleMatrix = image.getUserRoleMatrix();
+        } else {
+            // An export has no use for the dense matrices, whose printing
+            // would cost more than the export itself on a large policy.
+            roleObjectMatrix = initializeRoleObjectMatrix(!export);
+            Set<RbacRole> roles = roleObjectMatrix.getRoles();
+            userRoleMatrix = initializeUserRoleMatrix(roles, !export);
+        }
+
+        if (export) {
+            export(args, roleObjectMatrix, userRoleMatrix);
+            return;
+        }
+        if (serve) {
+            if (journal != null) {
+                journal.start(roleObjectMatrix, userRoleMatrix);
+            }
+            boolean hasPort = args.length > 1 && !args[1].startsWith("--");
+            serve(hasPort ? Integer.parseInt(args[1]) : SERVER_PORT,
+                new PolicyStore(roleObjectMatrix, userRoleMatrix, journal),
+                Arrays.asList(args).contains("--watch"));
+            return;
+        }
+        if (batch) {
+            batch(args.length > 1 ? args[1] : "-", stdout,
+                new PolicyStore(roleObjectMatrix, userRoleMatrix));
+            if (metrics.isEnabled()) {
+                metrics.dump(System.err);
+            }
+            return;
+        }
 
         RbacController controller = new RbacController(roleObjectMatrix,
             userRoleMatrix);
 
         doQueryLoop(controller);
+
+        if (metrics.isEnabled()) {
+            metrics.dump(System.err);
+        }
+    }
+
+    private static void compileImage (String image) throws IOException {
+        RoleObjectMatrix roleObjectMatrix = initializeRoleObjectMatrix(true);
+        UserRoleMatrix userRoleMatrix =
+            initializeUserRoleMatrix(roleObjectMatrix.getRoles(), true);
+        PolicyImage.write(image, SOURCE_FILES, roleObjectMatrix,
+            userRoleMatrix);
+        System.out.printf("%nWrote policy image %s.%n", image);
+    }
+
+    /**
+     * Exports a matrix for --export (permissions|users) (csv|jsonl) file
+     * [offset [limit]].
+     */
+    private static void export (String[] args,
+        RoleObjectMatrix roleObjectMatrix, UserRoleMatrix userRoleMatrix)
+        throws IOException {
+        PolicyExporter.Format format = args[2].equals("jsonl") ?
+            PolicyExporter.Format.JSON_LINES : PolicyExporter.Format.CSV;
+        long offset = args.length > 4 ? Long.parseLong(args[4]) : 0;
+        long limit = args.length > 5 ? Long.parseLong(args[5]) :
+            Long.MAX_VALUE;
+        long rows;
+        try (Writer out = Files.newBufferedWriter(Paths.get(args[3]),
+            StandardCharsets.UTF_8)) {
+            PolicyExporter exporter = new PolicyExporter(out, format);
+            if (args[1].equals("users")) {
+                rows = exporter.exportUserRoles(userRoleMatrix, offset, limit);
+            } else {
+                rows = exporter.exportPermissions(roleObjectMatrix, offset,
+                    limit);
+            }
+        }
+        System.out.printf("%nExported %d rows to %s.%n", rows, args[3]);
+    }
+
+    /**
+     * Serves decisions for --serve [port] [--watch] [--journal dir],
+     * reloading the permissions and users files whenever they change if
+     * watching, and keeping every change durable in dir if journaling.
+     */
+    private static void serve (int port, PolicyStore store, boolean watch)
+        throws IOException {
+        PolicyServer server = new PolicyServer(store, port);
+        server.start();
+        System.out.printf("%nServing policy decisions on 127.0.0.1:%d.%n",
+            server.getPort());
+        if (watch) {
+            new PolicyWatcher(store, "permissionsToRoles.txt",
+                "userRoles.txt").start();
+            System.out.println("Watching the permissions and users files.");
+        }
+        try {
+            server.awaitTermination();
+        } catch (InterruptedException e) {
+            server.close();
+        }
+    }
+
+    /**
+     * Evaluates check requests for --batch [file], reading stdin when the
+     * file is "-" or missing, and writes the decisions to stdout. Loading
+     * never prompts in this mode, so stdin carries nothing but requests.
+     */
+    private static void batch (String file, PrintStream stdout,
+        PolicyStore store) throws IOException {
+        BatchEvaluator evaluator = new BatchEvaluator(store,
+            Runtime.getRuntime().availableProcessors());
+        try (BufferedReader in = file.equals("-") ?
+                new BufferedReader(new InputStreamReader(System.in,
+                    StandardCharsets.UTF_8), 1 << 16) :
+                Files.newBufferedReader(Paths.get(file),
+                    StandardCharsets.UTF_8);
+             Writer out = new BufferedWriter(new OutputStreamWriter(stdout,
+                 StandardCharsets.UTF_8), 1 << 16)) {
+            evaluator.evaluate(in, out);
+        }
+        System.err.printf("%n%s%n", evaluator.getSummary());
     }
 
     private static void doQueryLoop (RbacController controller) {
@@ -29,7 +201,7 @@ public class Main {
                 object = null;
             }
 
-            System.out.print("Enter object to query (empty to get all): ");
+            System.out.print("Enter permission to query (empty to get all): ");
             String rightString = in.nextLine();
             RbacPermission permission = new RbacPermission(rightString);
             if (rightString.isEmpty()) {
@@ -45,40 +217,60 @@ public class Main {
         }
     }
 
-    private static RoleObjectMatrix initializeRoleObjectMatrix () {
+    private static RoleObjectMatrix initializeRoleObjectMatrix (
+        boolean print) {
         RoleHierarchy roleHierarchy =
             RoleHierarchy.getRoleHierarchyFromFile("roleHierarchy.txt");
         Set<RbacObject> objects =
             RoleObjectMatrix.getResourceObjectsFromFile("resourceObjects.txt");
+        if (roleHierarchy == null || objects == null) {
+            System.exit(1);
+        }
 
         RoleObjectMatrix roleObjectMatrix =
             new RoleObjectMatrix(roleHierarchy, objects);
 
-        System.out.println("\nInitial Role-Object Matrix:");
-        roleObjectMatrix.printMatrix(5);
+        if (print) {
+            System.out.println("\nInitial Role-Object Matrix:");
+            roleObjectMatrix.printMatrix(5);
+        }
 
         roleObjectMatrix.applyRoleHierarchyPermissions();
         roleObjectMatrix.applyPermissionsFromFile("permissionsToRoles.txt");
 
-        System.out.println("\nRole-Object Matrix after adding permissions " +
-            "from file:");
-        roleObjectMatrix.printMatrix(5);
+        if (print) {
+            System.out.println("\nRole-Object Matrix after adding " +
+                "permissions from file:");
+            roleObjectMatrix.printMatrix(5);
+        }
 
         return roleObjectMatrix;
     }
 
     private static UserRoleMatrix initializeUserRoleMatrix (Set<RbacRole>
-        roles) {
+        roles, boolean print) {
         SsdConstraintSet constraints =
             SsdConstraintSet.getConstraintSetFromFile("roleSetsSSD.txt");
-        constraints.printConstraints();
+        if (constraints == null) {
+            System.exit(1);
+        }
+        if (print) {
+            constraints.printConstraints();
+        }
 
         UserRoleMatrix userRoleMatrix = new UserRoleMatrix(constraints, roles);
 
-        userRoleMatrix.addUsersFromFile("userRoles.txt");
+        boolean loaded = Runtime.getRuntime().availableProcessors() > 1 ?
+            userRoleMatrix.addUsersFromFileParallel("userRoles.txt") :
+            userRoleMatrix.addUsersFromFile("userRoles.txt");
+        if (!loaded) {
+            System.exit(1);
+        }
 
-        System.out.println("\nUser-Role matrix");
-        userRoleMatrix.printMatrix();
+        if (print) {
+            System.out.println("\nUser-Role matrix");
+            userRoleMatrix.printMatrix();
+        }
 
         return userRoleMatrix;
     }
@@ -0,0 +1,182 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A set of wildcard permissions, such as {@code write*}, indexed by their
+ * prefixes in a trie. Finding every pattern that matches a permission walks
+ * the permission's text once, however many patterns there are.
+ */
+public class PermissionTrie {
+    private final Node root;
+    private int size;
+
+    /**
+     * Constructs a new empty trie.
+     */
+    public PermissionTrie () {
+        this.root = new Node();
+    }
+
+    /**
+     * Constructs a copy of another trie.
+     *
+     * @param other The trie to copy.
+     */
+    public PermissionTrie (PermissionTrie other) {
+        this();
+        for (RbacPermission pattern : other.getPatterns()) {
+            add(pattern);
+        }
+    }
+
+    /**
+     * Adds a wildcard permission.
+     *
+     * @param pattern The wildcard permission.
+     * @return true if the pattern was added, false if it was already here.
+     */
+    public boolean add (RbacPermission pattern) {
+        String prefix = pattern.getPrefix();
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.childOrCreate(prefix.charAt(i));
+        }
+        if (node.pattern != null) {
+            return false;
+        }
+        node.pattern = pattern;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes a wildcard permission. Emptied nodes are kept; tries are
+     * small and patterns tend to come back.
+     *
+     * @param pattern The wildcard permission.
+     * @return true if the pattern was removed, false if it wasn't here.
+     */
+    public boolean remove (RbacPermission pattern) {
+        String prefix = pattern.getPrefix();
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.child(prefix.charAt(i));
+        }
+        if (node == null || node.pattern == null) {
+            return false;
+        }
+        node.pattern = null;
+        size--;
+        return true;
+    }
+
+    /**
+     * Checks if any pattern matches a permission.
+     *
+     * @param permission The permission's text.
+     * @return true if a pattern's prefix starts the permission.
+     */
+    public boolean matches (String permission) {
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            if (node.pattern != null) {
+                return true;
+            }
+            if (i == permission.length()) {
+                return false;
+            }
+            node = node.child(permission.charAt(i));
+        }
+        return false;
+    }
+
+    /**
+     * Gives every pattern that matches a permission to an action, shortest
+     * prefix first.
+     *
+     * @param permission The permission's text.
+     * @param action     What to do with each matching pattern.
+     */
+    public void forEachMatch (String permission,
+        Consumer<RbacPermission> action) {
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            if (node.pattern != null) {
+                action.accept(node.pattern);
+            }
+            if (i == permission.length()) {
+                return;
+            }
+            node = node.child(permission.charAt(i));
+        }
+    }
+
+    /**
+     * Gives every pattern in this trie.
+     *
+     * @return The patterns.
+     */
+    public List<RbacPermission> getPatterns () {
+        List<RbacPermission> patterns = new ArrayList<>(size);
+        root.collect(patterns);
+        return patterns;
+    }
+
+    /**
+     * Checks if this trie holds no patterns.
+     *
+     * @return true if empty.
+     */
+    public boolean isEmpty () {
+        return size == 0;
+    }
+
+    /**
+     * One node of the trie, with its children sorted by character.
+     */
+    private static class Node {
+        private static final char[] NO_KEYS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+        private RbacPermission pattern;
+
+        private Node child (char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        private Node childOrCreate (char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(keys, index, newKeys, index + 1,
+                keys.length - index);
+            System.arraycopy(children, index, newChildren, index + 1,
+                children.length - index);
+            newKeys[index] = c;
+            newChildren[index] = new Node();
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[index];
+        }
+
+        private void collect (List<RbacPermission> patterns) {
+            if (pattern != null) {
+                patterns.add(pattern);
+            }
+            for (Node child : children) {
+                child.collect(patterns);
+            }
+        }
+    }
+}
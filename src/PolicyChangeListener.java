@@ -0,0 +1,39 @@
+/**
+ * Receives notice of changes made to a RoleObjectMatrix or UserRoleMatrix,
+ * so derived structures can be kept current without rebuilding them.
+ */
+public interface PolicyChangeListener {
+    /**
+     * Called after the permissions a role holds on an object changed.
+     *
+     * @param role   The role whose permissions changed.
+     * @param object The object the permissions apply to.
+     */
+    default void permissionsChanged (RbacRole role, RbacObject object) {
+    }
+
+    /**
+     * Called after an object was added to the system.
+     *
+     * @param object The new object.
+     */
+    default void objectAdded (RbacObject object) {
+    }
+
+    /**
+     * Called after a relationship of the role hierarchy was added or removed,
+     * which may also have added roles. The permissions that moved with it
+     * are told through permissionsChanged.
+     */
+    default void hierarchyChanged () {
+    }
+
+    /**
+     * Called after the set of roles assigned to a user changed, including the
+     * user being removed.
+     *
+     * @param user The user whose roles changed.
+     */
+    default void userRolesChanged (RbacUser user) {
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.*;
+
+/**
+ * Collects what changed in a RoleObjectMatrix and UserRoleMatrix since it
+ * was last cleared, so a new PolicySnapshot can be derived from the
+ * previous one by redoing only the changed cells and users.
+ */
+public class PolicyChangeSet implements PolicyChangeListener {
+    private final Map<RbacRole, Set<RbacObject>> changedCells;
+    private final List<RbacObject> addedObjects;
+    private final Set<RbacUser> changedUsers;
+    private boolean hierarchyChanged;
+
+    /**
+     * Constructs a new empty change set.
+     */
+    public PolicyChangeSet () {
+        this.changedCells = new HashMap<>();
+        this.addedObjects = new ArrayList<>();
+        this.changedUsers = new HashSet<>();
+    }
+
+    @Override
+    public void permissionsChanged (RbacRole role, RbacObject object) {
+        changedCells.computeIfAbsent(role, k -> new HashSet<>()).add(object);
+    }
+
+    @Override
+    public void objectAdded (RbacObject object) {
+        addedObjects.add(object);
+    }
+
+    @Override
+    public void hierarchyChanged () {
+        hierarchyChanged = true;
+    }
+
+    @Override
+    public void userRolesChanged (RbacUser user) {
+        changedUsers.add(user);
+    }
+
+    /**
+     * Gives the (role, object) cells whose permissions changed, grouped by
+     * role.
+     *
+     * @return The changed cells.
+     */
+    public Map<RbacRole, Set<RbacObject>> getChangedCells () {
+        return changedCells;
+    }
+
+    /**
+     * Gives the objects added.
+     *
+     * @return The added objects.
+     */
+    public List<RbacObject> getAddedObjects () {
+        return addedObjects;
+    }
+
+    /**
+     * Gives the users whose roles changed, including removed users.
+     *
+     * @return The changed users.
+     */
+    public Set<RbacUser> getChangedUsers () {
+        return changedUsers;
+    }
+
+    /**
+     * Checks if the role hierarchy changed.
+     *
+     * @return true if a relationship was added or removed.
+     */
+    public boolean isHierarchyChanged () {
+        return hierarchyChanged;
+    }
+
+    /**
+     * Forgets every change collected so far.
+     */
+    public void clear () {
+        changedCells.clear();
+        addedObjects.clear();
+        changedUsers.clear();
+        hierarchyChanged = false;
+    }
+}
@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Streams the non-empty cells of the role-object and user-role matrices to
+ * a Writer as CSV or JSON Lines, one row per (role, object, permission) or
+ * (user, role). Rows come in a stable order, sorted like the printed
+ * matrices, and can be fetched a page at a time with an offset and a
+ * limit. Rows are written as they are found, but the keys are sorted up
+ * front, so an export holds O(roles + objects) or O(users) references,
+ * though never anything per row. Pass a buffered Writer for anything but
+ * tiny exports.
+ */
+public class PolicyExporter {
+    private static final RbacComparator RBAC_COMPARATOR = new RbacComparator();
+    private static final Comparator<RbacElement> STABLE_ORDER =
+        RBAC_COMPARATOR.thenComparing(Object::toString);
+
+    /**
+     * The format rows are written in.
+     */
+    public enum Format {
+        CSV,
+        JSON_LINES
+    }
+
+    private final Writer out;
+    private final Format format;
+
+    /**
+     * Constructs a new exporter.
+     *
+     * @param out    Where to write rows.
+     * @param format The format to write rows in.
+     */
+    public PolicyExporter (Writer out, Format format) {
+        this.out = out;
+        this.format = format;
+    }
+
+    /**
+     * Writes every permission held by every role, including inherited ones,
+     * sorted by role, object and then permission.
+     *
+     * @param matrix The matrix to export.
+     * @param offset The number of rows to skip.
+     * @param limit  The maximum number of rows to write.
+     * @return The number of rows written.
+     * @throws IOException If writing fails.
+     */
+    public long exportPermissions (RoleObjectMatrix matrix, long offset,
+        long limit) throws IOException {
+        String[] columns = {"role", "object", "permission"};
+        writeHeader(columns);
+        List<RbacRole> roles = sorted(matrix.getRoles());
+        List<RbacObject> objects = sorted(matrix.getObjects());
+        List<RbacPermission> permissions = new ArrayList<>();
+        String[] row = new String[3];
+        long skipped = 0;
+        long written = 0;
+
+        for (RbacRole role : roles) {
+            Map<RbacObject, Map<RbacPermission, Set<RbacRole>>> cells =
+                matrix.getRow(role);
+            for (RbacObject object : objects) {
+                Map<RbacPermission, Set<RbacRole>> cell = cells.get(object);
+                if (cell == null || cell.isEmpty()) {
+                    continue;
+                }
+                if (skipped + cell.size() <= offset) {
+                    skipped += cell.size();
+                    continue;
+                }
+                permissions.clear();
+                permissions.addAll(cell.keySet());
+                permissions.sort(STABLE_ORDER);
+                for (RbacPermission permission : permissions) {
+                    if (skipped < offset) {
+                        skipped++;
+                        continue;
+                    }
+                    if (written == limit) {
+                        return written;
+                    }
+                    row[0] = role.toString();
+                    row[1] = object.toString();
+                    row[2] = permission.toString();
+                    writeRow(columns, row);
+                    written++;
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes every role assigned to every user, sorted by user and then
+     * role.
+     *
+     * @param matrix The matrix to export.
+     * @param offset The number of rows to skip.
+     * @param limit  The maximum number of rows to write.
+     * @return The number of rows written.
+     * @throws IOException If writing fails.
+     */
+    public long exportUserRoles (UserRoleMatrix matrix, long offset,
+        long limit) throws IOException {
+        String[] columns = {"user", "role"};
+        writeHeader(columns);
+        List<RbacUser> users = sorted(matrix.getUsers());
+        RbacRole[] roles = new RbacRole[0];
+        String[] row = new String[2];
+        long skipped = 0;
+        long written = 0;
+
+        for (RbacUser user : users) {
+            RbacRole[] userRoles = matrix.getRoleArray(user);
+            if (skipped + userRoles.length <= offset) {
+                skipped += userRoles.length;
+                continue;
+            }
+            if (roles.length < userRoles.length) {
+                roles = new RbacRole[userRoles.length];
+            }
+            System.arraycopy(userRoles, 0, roles, 0, userRoles.length);
+            Arrays.sort(roles, 0, userRoles.length, STABLE_ORDER);
+            for (int i = 0; i < userRoles.length; i++) {
+                if (skipped < offset) {
+                    skipped++;
+                    continue;
+                }
+                if (written == limit) {
+                    return written;
+                }
+                row[0] = user.toString();
+                row[1] = roles[i].toString();
+                writeRow(columns, row);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    private static <T extends RbacElement> List<T> sorted (
+        Collection<T> elements) {
+        List<T> list = new ArrayList<>(elements);
+        list.sort(STABLE_ORDER);
+        return list;
+    }
+
+    private void writeHeader (String[] columns) throws IOException {
+        if (format == Format.CSV) {
+            writeRow(null, columns);
+        }
+    }
+
+    /**
+     * Writes one row.
+     *
+     * @param columns The column names, used as JSON keys, or {@code null}
+     *                for the CSV header.
+     * @param values  The row's values.
+     * @throws IOException If writing fails.
+     */
+    private void writeRow (String[] columns, String[] values)
+        throws IOException {
+        if (format == Format.CSV) {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                writeCsvField(values[i]);
+            }
+        } else {
+            out.write('{');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                writeJsonString(columns[i]);
+                out.write(':');
+                writeJsonString(values[i]);
+            }
+            out.write('}');
+        }
+        out.write('\n');
+    }
+
+    private void writeCsvField (String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.write('"');
+            }
+            out.write(c);
+        }
+        out.write('"');
+    }
+
+    private void writeJsonString (String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int)c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,378 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+
+/**
+ * A compiled binary image of a fully resolved policy: the interned names,
+ * the role hierarchy, every propagated permission with its originating
+ * roles, the SSD constraints and the user assignments. Loading an image
+ * skips text parsing, hierarchy propagation and SSD validation entirely.
+ * <p>
+ * An image remembers the size and modification time of the text files it
+ * was compiled from and is treated as stale as soon as any of them change.
+ * The payload is protected by a CRC32 checksum.
+ */
+public class PolicyImage {
+    private static final int MAGIC = 0x52424149;
+    private static final int FORMAT_VERSION = 2;
+
+    private final RoleObjectMatrix roleObjectMatrix;
+    private final UserRoleMatrix userRoleMatrix;
+
+    private PolicyImage (RoleObjectMatrix roleObjectMatrix,
+        UserRoleMatrix userRoleMatrix) {
+        this.roleObjectMatrix = roleObjectMatrix;
+        this.userRoleMatrix = userRoleMatrix;
+    }
+
+    public RoleObjectMatrix getRoleObjectMatrix () {
+        return roleObjectMatrix;
+    }
+
+    public UserRoleMatrix getUserRoleMatrix () {
+        return userRoleMatrix;
+    }
+
+    /**
+     * Writes a policy to an image file, replacing any existing image.
+     *
+     * @param image            The image file to write.
+     * @param sources          The text files the policy was loaded from.
+     * @param roleObjectMatrix The resolved role-object matrix.
+     * @param userRoleMatrix   The user-role matrix.
+     * @throws IOException If the image can't be written.
+     */
+    public static void write (String image, List<String> sources,
+        RoleObjectMatrix roleObjectMatrix, UserRoleMatrix userRoleMatrix)
+        throws IOException {
+        ImageWriter payload = new ImageWriter();
+        Map<RbacRole, Integer> roles = new HashMap<>();
+        Map<RbacObject, Integer> objects = new HashMap<>();
+        Map<RbacPermission, Integer> permissions = new HashMap<>();
+
+        List<RbacRole> roleList =
+            new ArrayList<>(roleObjectMatrix.getRoles());
+        payload.putNames(roleList, roles);
+        List<RbacObject> objectList =
+            new ArrayList<>(roleObjectMatrix.getObjects());
+        payload.putNames(objectList, objects);
+        Set<RbacPermission> permissionSet = new HashSet<>();
+        for (RbacRole role : roleList) {
+            for (RbacObject object : objectList) {
+                permissionSet.addAll(roleObjectMatrix
+                    .getObjectPermissionsForRole(role, object));
+            }
+        }
+        payload.putNames(new ArrayList<>(permissionSet), permissions);
+
+        RoleHierarchy roleHierarchy = roleObjectMatrix.getRoleHierarchy();
+        List<int[]> edges = new ArrayList<>();
+        for (RbacRole role : roleList) {
+            for (RbacRole descendant : roleHierarchy.getDescendants(role)) {
+                edges.add(new int[] {roles.get(role), roles.get(descendant)});
+            }
+        }
+        payload.putInt(roleHierarchy.isGeneral() ? 1 : 0);
+        payload.putInt(edges.size());
+        for (int[] edge : edges) {
+            payload.putInt(edge[0]);
+            payload.putInt(edge[1]);
+        }
+
+        int cellCount = 0;
+        for (RbacRole role : roleList) {
+            for (RbacObject object : objectList) {
+                cellCount += roleObjectMatrix.getCell(role, object).size();
+            }
+        }
+        payload.putInt(cellCount);
+        for (RbacRole role : roleList) {
+            for (RbacObject object : objectList) {
+                for (Map.Entry<RbacPermission, Set<RbacRole>> entry :
+                    roleObjectMatrix.getCell(role, object).entrySet()) {
+                    payload.putInt(roles.get(role));
+                    payload.putInt(objects.get(object));
+                    payload.putInt(permissions.get(entry.getKey()));
+                    payload.putIds(entry.getValue(), roles);
+                }
+            }
+        }
+
+        Set<SsdConstraint> constraints =
+            userRoleMatrix.getConstraintSet().getConstraints();
+        List<RbacRole> constrainedRoles = new ArrayList<>();
+        for (SsdConstraint constraint : constraints) {
+            constrainedRoles.addAll(constraint.getRoleSet());
+        }
+        List<RbacRole> userRoles = new ArrayList<>();
+        for (RbacUser user : userRoleMatrix.getUsers()) {
+            userRoles.addAll(userRoleMatrix.getRoles(user));
+        }
+        Map<RbacRole, Integer> otherRoles = new HashMap<>(roles);
+        List<RbacRole> extraRoles = new ArrayList<>();
+        for (RbacRole role : constrainedRoles) {
+            if (otherRoles.putIfAbsent(role, otherRoles.size()) == null) {
+                extraRoles.add(role);
+            }
+        }
+        for (RbacRole role : userRoles) {
+            if (otherRoles.putIfAbsent(role, otherRoles.size()) == null) {
+                extraRoles.add(role);
+            }
+        }
+        payload.putNames(extraRoles, new HashMap<>());
+
+        payload.putInt(constraints.size());
+        for (SsdConstraint constraint : constraints) {
+            payload.putInt(constraint.getN());
+            payload.putIds(constraint.getRoleSet(), otherRoles);
+        }
+
+        List<RbacUser> users = new ArrayList<>(userRoleMatrix.getUsers());
+        payload.putNames(users, new HashMap<>());
+        for (RbacUser user : users) {
+            payload.putIds(userRoleMatrix.getRoles(user), otherRoles);
+        }
+
+        ImageWriter header = new ImageWriter();
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putInt(sources.size());
+        for (String source : sources) {
+            Path path = Paths.get(source);
+            header.putString(source);
+            header.putLong(Files.size(path));
+            header.putLong(Files.getLastModifiedTime(path).toMillis());
+        }
+        ByteBuffer payloadBytes = payload.toBuffer();
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes.duplicate());
+        header.putLong(payloadBytes.remaining());
+        header.putLong(crc.getValue());
+
+        Path target = Paths.get(image);
+        Path temp = Paths.get(image + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer headerBytes = header.toBuffer();
+            while (headerBytes.hasRemaining()) {
+                channel.write(headerBytes);
+            }
+            while (payloadBytes.hasRemaining()) {
+                channel.write(payloadBytes);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a policy from an image file by memory mapping it.
+     *
+     * @param image   The image file to load.
+     * @param sources The text files the policy would otherwise be loaded
+     *                from, in the order given when the image was written.
+     * @return The loaded policy, or {@code null} if the image doesn't exist,
+     * is stale, or fails verification. The caller should then fall back to
+     * the text files.
+     */
+    public static PolicyImage load (String image, List<String> sources) {
+        Path path = Paths.get(image);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path,
+            StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode
+                .READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC ||
+                buffer.getInt() != FORMAT_VERSION) {
+                System.err.printf("Policy image %s has an unknown format.%n",
+                    image);
+                return null;
+            }
+            if (!isFresh(buffer, sources)) {
+                System.err.printf("Policy image %s is stale.%n", image);
+                return null;
+            }
+
+            long payloadLength = buffer.getLong();
+            long checksum = buffer.getLong();
+            if (payloadLength != buffer.remaining()) {
+                System.err.printf("Policy image %s is truncated.%n", image);
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if (crc.getValue() != checksum) {
+                System.err.printf("Policy image %s failed its checksum.%n",
+                    image);
+                return null;
+            }
+            return readPayload(buffer);
+        } catch (IOException | RuntimeException e) {
+            System.err.printf("Policy image %s could not be read: %s%n",
+                image, e);
+            return null;
+        }
+    }
+
+    private static boolean isFresh (ByteBuffer buffer, List<String> sources)
+        throws IOException {
+        int sourceCount = buffer.getInt();
+        boolean fresh = sourceCount == sources.size();
+        for (int i = 0; i < sourceCount; i++) {
+            String source = getString(buffer);
+            long size = buffer.getLong();
+            long modified = buffer.getLong();
+            if (!fresh) {
+                continue;
+            }
+            Path path = Paths.get(source);
+            fresh = source.equals(sources.get(i)) && Files.exists(path) &&
+                Files.size(path) == size &&
+                Files.getLastModifiedTime(path).toMillis() == modified;
+        }
+        return fresh;
+    }
+
+    private static PolicyImage readPayload (ByteBuffer buffer) {
+        RbacRole[] roles = getNames(buffer, RbacRole.SYMBOLS,
+            RbacRole[]::new);
+        RbacObject[] objects = getNames(buffer, RbacObject.SYMBOLS,
+            RbacObject[]::new);
+        RbacPermission[] permissions =
+            getNames(buffer, RbacPermission.SYMBOLS,
+                RbacPermission[]::new);
+
+        RoleHierarchy roleHierarchy = new RoleHierarchy(buffer.getInt() != 0);
+        int edgeCount = buffer.getInt();
+        for (int i = 0; i < edgeCount; i++) {
+            roleHierarchy.addRelationship(roles[buffer.getInt()],
+                roles[buffer.getInt()]);
+        }
+        RoleObjectMatrix roleObjectMatrix = new RoleObjectMatrix(
+            roleHierarchy, new HashSet<>(Arrays.asList(objects)));
+
+        int cellCount = buffer.getInt();
+        for (int i = 0; i < cellCount; i++) {
+            RbacRole role = roles[buffer.getInt()];
+            RbacObject object = objects[buffer.getInt()];
+            RbacPermission permission = permissions[buffer.getInt()];
+            roleObjectMatrix.restoreCell(role, object, permission,
+                getIds(buffer, roles));
+        }
+
+        RbacRole[] extraRoles = getNames(buffer, RbacRole.SYMBOLS,
+            RbacRole[]::new);
+        RbacRole[] allRoles = Arrays.copyOf(roles,
+            roles.length + extraRoles.length);
+        System.arraycopy(extraRoles, 0, allRoles, roles.length,
+            extraRoles.length);
+
+        SsdConstraintSet constraints = new SsdConstraintSet();
+        int constraintCount = buffer.getInt();
+        for (int i = 0; i < constraintCount; i++) {
+            int n = buffer.getInt();
+            constraints.addConstraint(n, getIds(buffer, allRoles));
+        }
+
+        UserRoleMatrix userRoleMatrix = new UserRoleMatrix(constraints,
+            roleObjectMatrix.getRoles());
+        RbacUser[] users = getNames(buffer, RbacUser.SYMBOLS,
+            RbacUser[]::new);
+        for (RbacUser user : users) {
+            userRoleMatrix.restoreUser(user, getIds(buffer, allRoles));
+        }
+
+        return new PolicyImage(roleObjectMatrix, userRoleMatrix);
+    }
+
+    private static <T extends RbacElement> T[] getNames (ByteBuffer buffer,
+        RbacSymbolTable<T> symbols, IntFunction<T[]> arrayFactory) {
+        T[] names = arrayFactory.apply(buffer.getInt());
+        for (int i = 0; i < names.length; i++) {
+            names[i] = symbols.intern(getString(buffer));
+        }
+        return names;
+    }
+
+    private static <T> Set<T> getIds (ByteBuffer buffer, T[] names) {
+        int count = buffer.getInt();
+        Set<T> set = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            set.add(names[buffer.getInt()]);
+        }
+        return set;
+    }
+
+    private static String getString (ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A growable buffer for building the image.
+     */
+    private static class ImageWriter {
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+        private void ensure (int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(
+                    buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+
+        private void putInt (int value) {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        private void putLong (long value) {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        private void putString (String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(Integer.BYTES + bytes.length);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+
+        private <T extends RbacElement> void putNames (List<T> names,
+            Map<T, Integer> ids) {
+            putInt(names.size());
+            for (T name : names) {
+                ids.put(name, ids.size());
+                putString(name.toString());
+            }
+        }
+
+        private <T> void putIds (Set<T> set, Map<T, Integer> ids) {
+            putInt(set.size());
+            for (T element : set) {
+                putInt(ids.get(element));
+            }
+        }
+
+        private ByteBuffer toBuffer () {
+            ByteBuffer result = buffer.duplicate();
+            result.flip();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,539 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Makes the changes made through a PolicyStore survive a restart. Every
+ * change is appended to a journal file, and the whole policy is written
+ * now and then as a checkpoint, a PolicyImage, after which the journal
+ * starts over. Recovery loads the latest checkpoint and replays the
+ * journal written since.
+ * <p>
+ * Appends are group committed: a change is only buffered while the store
+ * holds its lock, and a background thread writes and forces everything
+ * buffered so far in one go. A writer waits for its change to be forced
+ * after releasing the store's lock, so concurrent writers share fsyncs
+ * instead of paying one each.
+ * <p>
+ * A checkpoint and the journal following it share a generation number in
+ * their file names, so a crash part way through a checkpoint never
+ * replays an old journal onto a newer checkpoint. A torn record at the end
+ * of the journal, from a crash mid-write, is dropped on recovery; a whole
+ * record that can't be applied fails recovery instead. Like a PolicyImage,
+ * a checkpoint is stale once any of the text files the policy was loaded
+ * from changes, and recovery then starts over from the files, after
+ * moving the files it couldn't use aside rather than deleting them.
+ * <p>
+ * Once a write fails the journal stays failed: every later change is
+ * refused, since it could no longer be made durable.
+ */
+public class PolicyJournal implements Closeable {
+    private static final String CHECKPOINT_PREFIX = "checkpoint-";
+    private static final String CHECKPOINT_SUFFIX = ".img";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+    private static final String STALE_PREFIX = "stale-";
+    private static final long CHECKPOINT_BYTES = 64L << 20;
+
+    /**
+     * A kind of change recorded in the journal.
+     */
+    public enum Operation {
+        ADD_PERMISSION, REVOKE_PERMISSION, ADD_RELATIONSHIP,
+        REMOVE_RELATIONSHIP, ADD_OBJECT, GIVE_ROLES, REMOVE_USER,
+        ASSIGN_ROLE, DEASSIGN_ROLE
+    }
+
+    private final Path dir;
+    private final List<String> sources;
+    private final Thread flusher;
+    private long generation;
+    private long validLength;
+    private FileChannel channel;
+    private ByteArrayOutputStream pending;
+    private long journalBytes;
+    private long appendedSequence;
+    private long durableSequence;
+    private boolean flushing;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * Constructs a journal kept in a directory. Call recover, then start.
+     *
+     * @param dir     The directory for checkpoints and journals, created if
+     *                needed.
+     * @param sources The text files the policy is loaded from otherwise.
+     * @throws IOException If the directory can't be created.
+     */
+    public PolicyJournal (String dir, List<String> sources)
+        throws IOException {
+        this.dir = Files.createDirectories(Paths.get(dir));
+        this.sources = sources;
+        this.pending = new ByteArrayOutputStream();
+        this.generation = -1;
+        this.flusher = new Thread(this::flushLoop, "policy-journal");
+        this.flusher.setDaemon(true);
+    }
+
+    /**
+     * Loads the latest usable checkpoint and replays the journal written
+     * after it.
+     *
+     * @return The recovered policy, or {@code null} if there is no usable
+     * checkpoint and the policy must be loaded from the text files.
+     * @throws IOException If the journal can't be read.
+     */
+    public PolicyImage recover () throws IOException {
+        for (long candidate : listGenerations(CHECKPOINT_PREFIX,
+            CHECKPOINT_SUFFIX)) {
+            PolicyImage image = PolicyImage.load(checkpointPath(candidate)
+                .toString(), sources);
+            if (image == null) {
+                continue;
+            }
+            generation = candidate;
+            long start = System.nanoTime();
+            long records = replay(image.getRoleObjectMatrix(),
+                image.getUserRoleMatrix());
+            System.err.printf("Recovered checkpoint %d and replayed %d " +
+                    "journal records in %.1f ms.%n", generation, records,
+                (System.nanoTime() - start) / 1e6);
+            return image;
+        }
+        return null;
+    }
+
+    /**
+     * Starts journaling changes to a policy: from the end of the replayed
+     * journal if recover returned it, or from a first checkpoint of it
+     * otherwise. In the latter case any checkpoints and journals recover
+     * couldn't use are first moved into a new stale-&lt;millis&gt;
+     * directory, never deleted, since they may hold the only copy of
+     * changes made before the text files were edited.
+     *
+     * @param roleObjectMatrix The role-object matrix.
+     * @param userRoleMatrix   The user-role matrix.
+     * @throws IOException If the journal or checkpoint can't be written, or
+     *                     the unused files can't be moved aside.
+     */
+    public synchronized void start (RoleObjectMatrix roleObjectMatrix,
+        UserRoleMatrix userRoleMatrix) throws IOException {
+        if (generation < 0) {
+            moveStaleFiles();
+            generation = 0;
+            checkpoint(roleObjectMatrix, userRoleMatrix);
+        } else {
+            channel = FileChannel.open(journalPath(generation),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.truncate(validLength);
+            channel.position(validLength);
+            journalBytes = validLength;
+        }
+        flusher.start();
+    }
+
+    /**
+     * Checks that no write has failed, so a change can still be made
+     * durable. Called by the store before it applies a change.
+     *
+     * @throws IOException If an earlier write failed.
+     */
+    synchronized void checkFailure () throws IOException {
+        if (failure != null) {
+            throw new IOException("The journal failed earlier: " +
+                failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * Buffers a change for the next group commit. Called by the store while
+     * it holds its lock, right after the change was applied. A write that
+     * fails meanwhile is reported by sync.
+     *
+     * @param operation The kind of change.
+     * @param elements  The change's arguments, in the order replay passes
+     *                  them.
+     * @return The change's sequence number, to wait for with sync.
+     */
+    synchronized long append (Operation operation, RbacElement... elements) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(operation.ordinal());
+        writeInt(payload, elements.length);
+        for (RbacElement element : elements) {
+            byte[] name = element.toString().getBytes(StandardCharsets.UTF_8);
+            writeInt(payload, name.length);
+            payload.write(name, 0, name.length);
+        }
+        byte[] record = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        writeInt(pending, record.length);
+        writeInt(pending, (int)crc.getValue());
+        pending.write(record, 0, record.length);
+        journalBytes += 8 + record.length;
+        notifyAll();
+        return ++appendedSequence;
+    }
+
+    /**
+     * Waits until a change and every change before it are on disk.
+     *
+     * @param sequence The change's sequence number.
+     * @throws IOException If writing the journal failed.
+     */
+    synchronized void sync (long sequence) throws IOException {
+        while (durableSequence < sequence && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the journal.",
+                    e);
+            }
+        }
+        if (durableSequence < sequence) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Checks if the journal has grown enough to be worth compacting into a
+     * checkpoint.
+     *
+     * @return true if a checkpoint is due.
+     */
+    synchronized boolean needsCheckpoint () {
+        return journalBytes >= CHECKPOINT_BYTES;
+    }
+
+    /**
+     * Writes the whole policy as the next generation's checkpoint, starts
+     * that generation's empty journal and deletes the older files. Every
+     * change appended so far counts as durable afterwards. Called by the
+     * store while it holds its lock, so the policy can't change meanwhile.
+     * A failed checkpoint fails the journal, like a failed append.
+     *
+     * @param roleObjectMatrix The role-object matrix.
+     * @param userRoleMatrix   The user-role matrix.
+     * @throws IOException If the checkpoint can't be written.
+     */
+    synchronized void checkpoint (RoleObjectMatrix roleObjectMatrix,
+        UserRoleMatrix userRoleMatrix) throws IOException {
+        checkFailure();
+        try {
+            writeCheckpoint(roleObjectMatrix, userRoleMatrix);
+        } catch (IOException e) {
+            failure = e;
+            notifyAll();
+            throw e;
+        }
+    }
+
+    private void writeCheckpoint (RoleObjectMatrix roleObjectMatrix,
+        UserRoleMatrix userRoleMatrix) throws IOException {
+        while (flushing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the journal.",
+                    e);
+            }
+        }
+        long next = generation + 1;
+        PolicyImage.write(checkpointPath(next).toString(), sources,
+            roleObjectMatrix, userRoleMatrix);
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(journalPath(next),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        generation = next;
+        pending.reset();
+        journalBytes = 0;
+        durableSequence = appendedSequence;
+        notifyAll();
+
+        for (long old : listGenerations(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX)) {
+            if (old < generation) {
+                Files.deleteIfExists(checkpointPath(old));
+            }
+        }
+        for (long old : listGenerations(JOURNAL_PREFIX, JOURNAL_SUFFIX)) {
+            if (old < generation) {
+                Files.deleteIfExists(journalPath(old));
+            }
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk and stops the journal.
+     *
+     * @throws IOException If the last writes fail.
+     */
+    @Override
+    public void close () throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (channel != null) {
+                channel.close();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Writes and forces buffered changes, a whole buffer at a time, until
+     * the journal is closed.
+     */
+    private void flushLoop () {
+        while (true) {
+            byte[] batch;
+            long sequence;
+            FileChannel target;
+            synchronized (this) {
+                while (pending.size() == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.size() == 0 || failure != null) {
+                    return;
+                }
+                batch = pending.toByteArray();
+                pending.reset();
+                sequence = appendedSequence;
+                target = channel;
+                flushing = true;
+            }
+
+            IOException error = null;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                target.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                flushing = false;
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableSequence = Math.max(durableSequence, sequence);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Moves every checkpoint and journal into a new stale-&lt;millis&gt;
+     * directory, warning loudly if there were any.
+     *
+     * @throws IOException If a file can't be moved.
+     */
+    private void moveStaleFiles () throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (long old : listGenerations(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX)) {
+            files.add(checkpointPath(old));
+        }
+        for (long old : listGenerations(JOURNAL_PREFIX, JOURNAL_SUFFIX)) {
+            files.add(journalPath(old));
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+        Path stale = Files.createDirectory(dir.resolve(STALE_PREFIX +
+            System.currentTimeMillis()));
+        for (Path file : files) {
+            Files.move(file, stale.resolve(file.getFileName()));
+        }
+        System.err.printf("WARNING: %d checkpoint and journal files in %s " +
+                "could not be recovered, because the policy files changed " +
+                "or no checkpoint was readable. Changes recorded in them " +
+                "are NOT in the policy loaded now. They were moved to %s.%n",
+            files.size(), dir, stale);
+    }
+
+    /**
+     * Applies the current generation's journal to a policy, stopping at the
+     * first incomplete or corrupt record. A whole record that can't be
+     * applied, or applies without changing anything, means the journal
+     * doesn't belong to the checkpoint, and fails recovery.
+     *
+     * @param roleObjectMatrix The role-object matrix.
+     * @param userRoleMatrix   The user-role matrix.
+     * @return The number of records applied.
+     * @throws IOException If the journal can't be read or a record can't be
+     *                     applied.
+     */
+    private long replay (RoleObjectMatrix roleObjectMatrix,
+        UserRoleMatrix userRoleMatrix) throws IOException {
+        Path path = journalPath(generation);
+        validLength = 0;
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        long records = 0;
+        while (buffer.remaining() >= 8) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length < 5 || length > buffer.remaining()) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), buffer.position(), length);
+            if ((int)crc.getValue() != checksum) {
+                break;
+            }
+            int start = buffer.position();
+            int end = start + length;
+            boolean applied;
+            try {
+                applied = apply(buffer, roleObjectMatrix, userRoleMatrix);
+            } catch (RuntimeException e) {
+                throw new IOException(String.format("Journal record %d at " +
+                    "offset %d in %s could not be applied: %s", records + 1,
+                    start - 8, path, e), e);
+            }
+            if (!applied) {
+                throw new IOException(String.format("Journal record %d at " +
+                    "offset %d in %s changed nothing, so the journal doesn't " +
+                    "match checkpoint %d.", records + 1, start - 8, path,
+                    generation));
+            }
+            buffer.position(end);
+            validLength = end;
+            records++;
+        }
+        if (validLength < buffer.capacity()) {
+            System.err.printf("Dropped %d bytes of torn journal records.%n",
+                buffer.capacity() - validLength);
+        }
+        return records;
+    }
+
+    /**
+     * Applies one journal record to a policy.
+     *
+     * @param record           The record's payload.
+     * @param roleObjectMatrix The role-object matrix.
+     * @param userRoleMatrix   The user-role matrix.
+     * @return true if the record changed the policy, as it did when it was
+     * journaled.
+     */
+    private static boolean apply (ByteBuffer record,
+        RoleObjectMatrix roleObjectMatrix, UserRoleMatrix userRoleMatrix) {
+        Operation operation = Operation.values()[record.get()];
+        String[] names = new String[record.getInt()];
+        for (int i = 0; i < names.length; i++) {
+            byte[] bytes = new byte[record.getInt()];
+            record.get(bytes);
+            names[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        switch (operation) {
+            case ADD_PERMISSION:
+                return roleObjectMatrix.addPermission(
+                    RbacRole.valueOf(names[0]), RbacObject.valueOf(names[1]),
+                    RbacPermission.valueOf(names[2]));
+            case REVOKE_PERMISSION:
+                return roleObjectMatrix.revokePermission(
+                    RbacRole.valueOf(names[0]), RbacObject.valueOf(names[1]),
+                    RbacPermission.valueOf(names[2]));
+            case ADD_RELATIONSHIP:
+                return roleObjectMatrix.addRelationship(
+                    RbacRole.valueOf(names[0]), RbacRole.valueOf(names[1]));
+            case REMOVE_RELATIONSHIP:
+                return roleObjectMatrix.removeRelationship(
+                    RbacRole.valueOf(names[0]), RbacRole.valueOf(names[1]));
+            case ADD_OBJECT:
+                return roleObjectMatrix.addObject(
+                    RbacObject.valueOf(names[0]));
+            case GIVE_ROLES:
+                Set<RbacRole> roles = new HashSet<>();
+                for (int i = 1; i < names.length; i++) {
+                    roles.add(RbacRole.valueOf(names[i]));
+                }
+                return userRoleMatrix.giveRolesToUser(
+                    RbacUser.valueOf(names[0]), roles);
+            case REMOVE_USER:
+                return userRoleMatrix.removeUser(RbacUser.valueOf(names[0]));
+            case ASSIGN_ROLE:
+                return userRoleMatrix.assignRole(RbacUser.valueOf(names[0]),
+                    RbacRole.valueOf(names[1]));
+            case DEASSIGN_ROLE:
+                return userRoleMatrix.deassignRole(
+                    RbacUser.valueOf(names[0]), RbacRole.valueOf(names[1]));
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Lists the generations of the files with a prefix and suffix, newest
+     * first.
+     *
+     * @param prefix The file name prefix.
+     * @param suffix The file name suffix.
+     * @return The generations.
+     * @throws IOException If the directory can't be listed.
+     */
+    private List<Long> listGenerations (String prefix, String suffix)
+        throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir,
+            prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(
+                        prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours.
+                }
+            }
+        }
+        generations.sort(Collections.reverseOrder());
+        return generations;
+    }
+
+    private Path checkpointPath (long generation) {
+        return dir.resolve(CHECKPOINT_PREFIX + generation + CHECKPOINT_SUFFIX);
+    }
+
+    private Path journalPath (long generation) {
+        return dir.resolve(JOURNAL_PREFIX + generation + JOURNAL_SUFFIX);
+    }
+
+    private static void writeInt (ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
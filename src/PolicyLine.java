@@ -0,0 +1,119 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * One tokenized line of a policy text file, as handed out by
+ * PolicyFileReader. Tokens are byte ranges into the reader's buffer and are
+ * only valid until the handler returns, so they have to be turned into
+ * elements, numbers or strings before then.
+ */
+public class PolicyLine {
+    private byte[] data;
+    private int[] starts;
+    private int[] ends;
+    private int size;
+    private long lineNumber;
+
+    PolicyLine () {
+        this.starts = new int[8];
+        this.ends = new int[8];
+    }
+
+    /**
+     * Points this line at a new range of bytes and splits it on spaces and
+     * tabs.
+     *
+     * @param data       The buffer holding the line.
+     * @param start      The first byte of the line, inclusive.
+     * @param end        The last byte of the line, exclusive.
+     * @param lineNumber The line's number within the file, starting at 1.
+     */
+    void set (byte[] data, int start, int end, long lineNumber) {
+        this.data = data;
+        this.lineNumber = lineNumber;
+        this.size = 0;
+        int i = start;
+        while (i < end) {
+            while (i < end && isWhitespace(data[i])) {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = i;
+            while (i < end && !isWhitespace(data[i])) {
+                i++;
+            }
+            ends[size++] = i;
+        }
+    }
+
+    /**
+     * Gives the number of tokens on this line.
+     *
+     * @return The number of tokens.
+     */
+    public int size () {
+        return size;
+    }
+
+    /**
+     * Gives the number of this line within its file, starting at 1.
+     *
+     * @return The line number.
+     */
+    public long getLineNumber () {
+        return lineNumber;
+    }
+
+    /**
+     * Gives a token as the canonical element it names.
+     *
+     * @param index The token's index.
+     * @param cache The cache resolving bytes to elements of the wanted type.
+     * @param <T>   The type of element.
+     * @return The canonical element.
+     */
+    public <T extends RbacElement> T getElement (int index,
+        PolicyTokenCache<T> cache) {
+        return cache.intern(data, starts[index], ends[index]);
+    }
+
+    /**
+     * Gives a token as a non-negative decimal number.
+     *
+     * @param index The token's index.
+     * @return The number, or -1 if the token isn't a number.
+     */
+    public int getInt (int index) {
+        int value = 0;
+        for (int i = starts[index]; i < ends[index]; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - digit)
+                / 10) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Gives a token as a new string. Only meant for error messages.
+     *
+     * @param index The token's index.
+     * @return The token.
+     */
+    public String getString (int index) {
+        return new String(data, starts[index], ends[index] - starts[index],
+            StandardCharsets.UTF_8);
+    }
+
+    private static boolean isWhitespace (byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+}
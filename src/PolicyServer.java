@@ -0,0 +1,353 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A policy decision point serving access checks to other processes over a
+ * loopback socket. Each connection is handled on its own thread, a virtual
+ * thread where the JVM has them, and decided against the latest snapshot of
+ * a PolicyStore, so any number of connections check concurrently without
+ * locking.
+ * <p>
+ * The protocol is line based, UTF-8, with space separated tokens:
+ * <pre>
+ * CHECK user object permission   -&gt; GRANTED, DENIED, UNKNOWN_USER or
+ *                                   UNKNOWN_OBJECT
+ * BATCH n                        -&gt; followed by n lines of
+ *                                   "user object permission"; answered by
+ *                                   one line of n letters, G, D, U or O,
+ *                                   or E for a line that isn't a request
+ *                                   or has a token that can't be parsed
+ * VERSION                        -&gt; the policy version checks run against
+ * QUIT                           -&gt; closes the connection
+ * </pre>
+ * Anything else, or a CHECK with a token that can't be parsed, is answered
+ * with a line starting with ERROR. A line longer than {@value #MAX_LINE}
+ * characters is answered with ERROR and the connection closed, so no
+ * client can make the server buffer an endless line. Requests may be
+ * pipelined: responses come back in request order and are flushed
+ * whenever the client has nothing more buffered.
+ */
+public class PolicyServer implements Closeable {
+    private static final char[] DECISION_LETTERS = {'G', 'D', 'U', 'O'};
+    private static final int MAX_BATCH = 1 << 20;
+    private static final int MAX_LINE = 8192;
+
+    private final PolicyStore store;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final Set<Socket> connections;
+    private final Thread acceptor;
+    private volatile boolean running;
+
+    /**
+     * Binds a new server to a loopback port. Call start to accept clients.
+     *
+     * @param store The store holding the policy to serve.
+     * @param port  The port, or 0 for any free port.
+     * @throws IOException If the port can't be bound.
+     */
+    public PolicyServer (PolicyStore store, int port) throws IOException {
+        this.store = store;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), port), 1024);
+        this.executor = newConnectionExecutor();
+        this.connections = ConcurrentHashMap.newKeySet();
+        this.acceptor = new Thread(this::acceptConnections,
+            "policy-server-acceptor");
+    }
+
+    /**
+     * Gives the port this server is bound to.
+     *
+     * @return The port.
+     */
+    public int getPort () {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts accepting clients on a background thread.
+     */
+    public void start () {
+        running = true;
+        acceptor.start();
+    }
+
+    /**
+     * Blocks until the server is closed.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void awaitTermination () throws InterruptedException {
+        acceptor.join();
+    }
+
+    /**
+     * Stops accepting clients and closes every open connection.
+     *
+     * @throws IOException If the listening socket can't be closed.
+     */
+    @Override
+    public void close () throws IOException {
+        running = false;
+        serverSocket.close();
+        for (Socket connection : connections) {
+            connection.close();
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Creates the executor running one task per connection: a virtual thread
+     * per task where the JVM offers it, looked up reflectively since this
+     * code also targets older JVMs, and a cached pool of daemon threads
+     * otherwise.
+     *
+     * @return The executor.
+     */
+    private static ExecutorService newConnectionExecutor () {
+        try {
+            Method factory = Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "policy-server-connection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private void acceptConnections () {
+        while (running) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.printf("Policy server stopped accepting: %s%n",
+                        e.getMessage());
+                }
+                return;
+            }
+            connections.add(socket);
+            executor.execute(() -> serve(socket));
+        }
+    }
+
+    /**
+     * Answers one client's requests until it quits or disconnects.
+     *
+     * @param socket The client's connection.
+     */
+    private void serve (Socket socket) {
+        try (Socket client = socket;
+             Reader reader = new InputStreamReader(client.getInputStream(),
+                 StandardCharsets.UTF_8);
+             Writer out = new BufferedWriter(new OutputStreamWriter(
+                 client.getOutputStream(), StandardCharsets.UTF_8))) {
+            client.setTcpNoDelay(true);
+            RequestReader in = new RequestReader(reader);
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!handle(line, in, out)) {
+                        break;
+                    }
+                    if (!in.ready()) {
+                        out.flush();
+                    }
+                }
+            } catch (LineTooLongException e) {
+                out.write("ERROR request line longer than " + MAX_LINE +
+                    " characters\n");
+            }
+            out.flush();
+        } catch (SocketException e) {
+            // The client went away or the server is closing.
+        } catch (IOException e) {
+            System.err.printf("Policy server connection failed: %s%n",
+                e.getMessage());
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    /**
+     * Handles one request line.
+     *
+     * @param line The request line.
+     * @param in   The rest of the client's input, for batch bodies.
+     * @param out  Where to write the response.
+     * @return false if the client asked to quit.
+     * @throws IOException If the connection fails.
+     */
+    private boolean handle (String line, RequestReader in, Writer out)
+        throws IOException {
+        String[] tokens = line.trim().split("\\s+");
+        switch (tokens[0]) {
+            case "CHECK":
+                if (tokens.length != 4) {
+                    out.write("ERROR usage: CHECK user object permission\n");
+                } else {
+                    AccessDecision decision = check(store.current(),
+                        tokens[1], tokens[2], tokens[3]);
+                    out.write(decision != null ? decision.name() :
+                        "ERROR a token can't be parsed");
+                    out.write('\n');
+                }
+                return true;
+            case "BATCH":
+                int count = tokens.length == 2 ? parseCount(tokens[1]) : -1;
+                if (count < 0) {
+                    out.write("ERROR usage: BATCH n, with n up to " +
+                        MAX_BATCH + "\n");
+                    return true;
+                }
+                PolicySnapshot snapshot = store.current();
+                char[] results = new char[count];
+                for (int i = 0; i < count; i++) {
+                    String request = in.readLine();
+                    if (request == null) {
+                        return false;
+                    }
+                    String[] fields = request.trim().split("\\s+");
+                    AccessDecision decision = fields.length == 3 ?
+                        check(snapshot, fields[0], fields[1], fields[2]) :
+                        null;
+                    results[i] = decision != null ?
+                        DECISION_LETTERS[decision.ordinal()] : 'E';
+                }
+                out.write(results);
+                out.write('\n');
+                return true;
+            case "VERSION":
+                out.write(Long.toString(store.current().getVersion()));
+                out.write('\n');
+                return true;
+            case "QUIT":
+                return false;
+            case "":
+                return true;
+            default:
+                out.write("ERROR unknown request " + tokens[0] + "\n");
+                return true;
+        }
+    }
+
+    /**
+     * Decides a check given as untrusted tokens, so that no token can fail
+     * the connection.
+     *
+     * @param snapshot   The snapshot to check against.
+     * @param user       The user token.
+     * @param object     The object token.
+     * @param permission The permission token.
+     * @return The decision, or {@code null} if a token can't be parsed.
+     */
+    private static AccessDecision check (PolicySnapshot snapshot,
+        String user, String object, String permission) {
+        try {
+            return snapshot.check(user, object, permission);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static int parseCount (String token) {
+        try {
+            int count = Integer.parseInt(token);
+            return count <= MAX_BATCH ? count : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a client's request lines through its own buffer, failing on a
+     * line longer than {@link #MAX_LINE} instead of buffering it whole.
+     */
+    private static class RequestReader {
+        private final Reader in;
+        private final char[] buffer;
+        private final StringBuilder line;
+        private int position;
+        private int limit;
+
+        private RequestReader (Reader in) {
+            this.in = in;
+            this.buffer = new char[MAX_LINE];
+            this.line = new StringBuilder();
+        }
+
+        /**
+         * Reads the next line, without its line terminator.
+         *
+         * @return The line, or {@code null} at the end of the input.
+         * @throws LineTooLongException If the line is too long.
+         * @throws IOException          If reading fails.
+         */
+        private String readLine () throws IOException {
+            line.setLength(0);
+            while (true) {
+                if (position == limit) {
+                    position = 0;
+                    limit = Math.max(0, in.read(buffer, 0, buffer.length));
+                    if (limit == 0) {
+                        return line.length() > 0 ? line.toString() : null;
+                    }
+                }
+                int start = position;
+                while (position < limit && buffer[position] != '\n') {
+                    position++;
+                }
+                if (line.length() + position - start > MAX_LINE) {
+                    throw new LineTooLongException();
+                }
+                line.append(buffer, start, position - start);
+                if (position < limit) {
+                    position++;
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+            }
+        }
+
+        /**
+         * Checks if another line can be read without blocking, roughly.
+         *
+         * @return true if input is buffered.
+         * @throws IOException If the input is closed.
+         */
+        private boolean ready () throws IOException {
+            return position < limit || in.ready();
+        }
+    }
+
+    /**
+     * Thrown for a request line longer than {@link #MAX_LINE}.
+     */
+    private static class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private LineTooLongException () {
+            super("Request line longer than " + MAX_LINE + " characters.");
+        }
+    }
+}
@@ -0,0 +1,298 @@
+import java.util.*;
+
+/**
+ * An immutable view of the whole policy at one point in time: the role
+ * hierarchy, the compiled role-object matrix, every user's roles and the SSD
+ * constraints. Snapshots are never changed once built, so any number of
+ * threads can check access against one without locking. Users' roles are
+ * kept in pages of 1024 users, so the next snapshot after a change to one
+ * user only copies that user's page.
+ */
+public class PolicySnapshot {
+    private static final int[] NO_ROLES = new int[0];
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    private final long version;
+    private final CompiledRoleObjectMatrix permissions;
+    private final int[][][] rolesByUser;
+    private final RoleHierarchy roleHierarchy;
+    private final SsdConstraintSet constraints;
+
+    /**
+     * Builds a snapshot from copies of the current authoring model.
+     *
+     * @param version          The version number of this snapshot.
+     * @param roleObjectMatrix The role-object matrix to compile.
+     * @param userRoleMatrix   The user-role matrix to copy.
+     */
+    public PolicySnapshot (long version, RoleObjectMatrix roleObjectMatrix,
+        UserRoleMatrix userRoleMatrix) {
+        this.version = version;
+        this.permissions = roleObjectMatrix.compile();
+        this.roleHierarchy = roleObjectMatrix.getRoleHierarchy().getCopy();
+        this.constraints = userRoleMatrix.getConstraintSet().getCopy();
+
+        this.rolesByUser = new int[pageCount()][][];
+        for (RbacUser user : userRoleMatrix.getUsers()) {
+            int userId = RbacUser.SYMBOLS.intern(user).id;
+            if (rolesByUser[userId >>> PAGE_BITS] == null) {
+                rolesByUser[userId >>> PAGE_BITS] = new int[1 << PAGE_BITS][];
+            }
+            rolesByUser[userId >>> PAGE_BITS][userId & PAGE_MASK] =
+                getRoleIds(userRoleMatrix, user);
+        }
+    }
+
+    /**
+     * Builds the next snapshot from the previous one and the changes made
+     * to the authoring model since. Only the changed cells of the compiled
+     * matrix and the pages of changed users are copied. The hierarchy is
+     * only copied again if it changed, and the SSD constraints, which are
+     * only ever added to, only if their count changed.
+     *
+     * @param version          The version number of this snapshot.
+     * @param previous         The snapshot the changes were made after.
+     * @param changes          The changes made since previous was built.
+     * @param roleObjectMatrix The changed role-object matrix.
+     * @param userRoleMatrix   The changed user-role matrix.
+     */
+    public PolicySnapshot (long version, PolicySnapshot previous,
+        PolicyChangeSet changes, RoleObjectMatrix roleObjectMatrix,
+        UserRoleMatrix userRoleMatrix) {
+        this.version = version;
+        this.permissions = new CompiledRoleObjectMatrix(previous.permissions,
+            roleObjectMatrix, changes);
+        this.roleHierarchy = changes.isHierarchyChanged() ?
+            roleObjectMatrix.getRoleHierarchy().getCopy() :
+            previous.roleHierarchy;
+        SsdConstraintSet liveConstraints = userRoleMatrix.getConstraintSet();
+        this.constraints = liveConstraints.size() ==
+            previous.constraints.size() ? previous.constraints :
+            liveConstraints.getCopy();
+
+        if (changes.getChangedUsers().isEmpty()) {
+            this.rolesByUser = previous.rolesByUser;
+            return;
+        }
+        this.rolesByUser = Arrays.copyOf(previous.rolesByUser,
+            Math.max(previous.rolesByUser.length, pageCount()));
+        Set<int[][]> copied = Collections.newSetFromMap(
+            new IdentityHashMap<>());
+        for (RbacUser user : changes.getChangedUsers()) {
+            int userId = RbacUser.SYMBOLS.intern(user).id;
+            int[][] page = rolesByUser[userId >>> PAGE_BITS];
+            if (!copied.contains(page)) {
+                page = page == null ? new int[1 << PAGE_BITS][] :
+                    page.clone();
+                rolesByUser[userId >>> PAGE_BITS] = page;
+                copied.add(page);
+            }
+            page[userId & PAGE_MASK] = getRoleIds(userRoleMatrix, user);
+        }
+    }
+
+    /**
+     * Gives the ids of a user's roles in the authoring model.
+     *
+     * @param userRoleMatrix The user-role matrix.
+     * @param user           The user.
+     * @return The role ids, or {@code null} if the user doesn't exist.
+     */
+    private static int[] getRoleIds (UserRoleMatrix userRoleMatrix,
+        RbacUser user) {
+        RbacRole[] roles = userRoleMatrix.getRoleArray(user);
+        if (roles == null) {
+            return null;
+        }
+        int[] roleIds = roles.length == 0 ? NO_ROLES : new int[roles.length];
+        for (int i = 0; i < roles.length; i++) {
+            roleIds[i] = CompiledRoleObjectMatrix.idOf(roles[i]);
+        }
+        return roleIds;
+    }
+
+    private static int pageCount () {
+        return (RbacUser.SYMBOLS.size() + PAGE_MASK) >>> PAGE_BITS;
+    }
+
+    /**
+     * Decides a single access check against this snapshot. Prints nothing
+     * and allocates nothing. Recorded in RbacMetrics when enabled.
+     *
+     * @param user       The user asking for access.
+     * @param object     The object to access.
+     * @param permission The permission needed on the object.
+     * @return The decision.
+     */
+    public AccessDecision check (RbacUser user, RbacObject object,
+        RbacPermission permission) {
+        if (!RbacMetrics.enabled) {
+            return decide(user, object, permission);
+        }
+        long start = System.nanoTime();
+        AccessDecision decision = decide(user, object, permission);
+        RbacMetrics.getInstance().recordCheck(decision,
+            System.nanoTime() - start);
+        return decision;
+    }
+
+    private AccessDecision decide (RbacUser user, RbacObject object,
+        RbacPermission permission) {
+        int[] roleIds = getRoleIds(user);
+        if (roleIds == null) {
+            return AccessDecision.UNKNOWN_USER;
+        }
+        int objectId = CompiledRoleObjectMatrix.idOf(object);
+        if (!permissions.hasObject(objectId)) {
+            return AccessDecision.UNKNOWN_OBJECT;
+        }
+
+        int permissionId = CompiledRoleObjectMatrix.idOf(permission);
+        for (int i = 0; i < roleIds.length; i++) {
+            if (permissionId >= 0 ? permissions.hasPermission(roleIds[i],
+                objectId, permissionId) : permissions.matchesWildcard(
+                roleIds[i], objectId, permission.toString())) {
+                return AccessDecision.GRANTED;
+            }
+        }
+        return AccessDecision.DENIED;
+    }
+
+    /**
+     * Decides a single access check given as raw tokens, as read from a
+     * client or a request file. Tokens are looked up without interning, so
+     * untrusted input can't grow the symbol tables; a permission never seen
+     * before can still be granted by a wildcard.
+     *
+     * @param user       The user token.
+     * @param object     The object token.
+     * @param permission The permission token.
+     * @return The decision.
+     * @throws IllegalArgumentException If a token can't be parsed, such as
+     *                                  one whose number is too large.
+     */
+    public AccessDecision check (String user, String object,
+        String permission) {
+        if (!RbacMetrics.enabled) {
+            return decide(user, object, permission);
+        }
+        long start = System.nanoTime();
+        AccessDecision decision = decide(user, object, permission);
+        RbacMetrics.getInstance().recordCheck(decision,
+            System.nanoTime() - start);
+        return decision;
+    }
+
+    private AccessDecision decide (String user, String object,
+        String permission) {
+        RbacUser rbacUser = RbacUser.SYMBOLS.lookup(user);
+        if (rbacUser == null || getRoleIds(rbacUser) == null) {
+            return AccessDecision.UNKNOWN_USER;
+        }
+        RbacObject rbacObject = RbacObject.SYMBOLS.lookup(object);
+        if (rbacObject == null || !permissions.hasObject(rbacObject)) {
+            return AccessDecision.UNKNOWN_OBJECT;
+        }
+        RbacPermission rbacPermission =
+            RbacPermission.SYMBOLS.lookup(permission);
+        if (rbacPermission == null) {
+            // Never granted exactly, but a wildcard may still match it.
+            rbacPermission = new RbacPermission(permission);
+        }
+        return decide(rbacUser, rbacObject, rbacPermission);
+    }
+
+    /**
+     * Gives the ids of the roles assigned to a user in this snapshot.
+     *
+     * @param user The user.
+     * @return The role ids, which must not be modified, or {@code null} if
+     * the user is unknown.
+     */
+    public int[] getRoleIds (RbacUser user) {
+        int userId = user.id >= 0 ? user.id : RbacUser.SYMBOLS.idOf(user);
+        if (userId < 0 || (userId >>> PAGE_BITS) >= rolesByUser.length) {
+            return null;
+        }
+        int[][] page = rolesByUser[userId >>> PAGE_BITS];
+        return page == null ? null : page[userId & PAGE_MASK];
+    }
+
+    /**
+     * Checks if a role is assigned to a user in this snapshot.
+     *
+     * @param user   The user.
+     * @param roleId The role's id.
+     * @return true if the role is assigned to the user.
+     */
+    public boolean isAssigned (RbacUser user, int roleId) {
+        int[] roleIds = getRoleIds(user);
+        if (roleIds == null) {
+            return false;
+        }
+        for (int assigned : roleIds) {
+            if (assigned == roleId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks many access requests at once against this snapshot.
+     *
+     * @param requests The requests to check.
+     * @return A bit set where bit i is set if request i is granted.
+     */
+    public BitSet checkAll (List<AccessRequest> requests) {
+        BitSet granted = new BitSet(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            AccessRequest request = requests.get(i);
+            if (check(request.getUser(), request.getObject(),
+                request.getPermission()) == AccessDecision.GRANTED) {
+                granted.set(i);
+            }
+        }
+        return granted;
+    }
+
+    /**
+     * Gives the version of the policy this snapshot was built from. Later
+     * publications have higher versions.
+     *
+     * @return The version.
+     */
+    public long getVersion () {
+        return version;
+    }
+
+    /**
+     * Gives the compiled role-object matrix of this snapshot.
+     *
+     * @return The compiled matrix.
+     */
+    public CompiledRoleObjectMatrix getPermissions () {
+        return permissions;
+    }
+
+    /**
+     * Gives this snapshot's copy of the role hierarchy. It must not be
+     * modified.
+     *
+     * @return The role hierarchy.
+     */
+    public RoleHierarchy getRoleHierarchy () {
+        return roleHierarchy;
+    }
+
+    /**
+     * Gives this snapshot's copy of the SSD constraints. It must not be
+     * modified.
+     *
+     * @return The SSD constraints.
+     */
+    public SsdConstraintSet getConstraints () {
+        return constraints;
+    }
+}
@@ -0,0 +1,393 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Owns the authoring model of a policy and publishes immutable snapshots of
+ * it. Readers call {@link #current()} and check against the snapshot without
+ * locking. Writers are serialized: each change is applied to the authoring
+ * model and a new snapshot is then published atomically, so readers see
+ * either the old or the new policy, never a mix. The store listens to the
+ * authoring model, and each new snapshot is derived from the previous one
+ * by redoing only what changed, so a single change costs in proportion to
+ * what it touched rather than to the whole policy.
+ * <p>
+ * Given a PolicyJournal, the store also makes every change durable: single
+ * changes are journaled and their callers return once the journal's group
+ * commit has forced them to disk, while bulk updates, which can't be
+ * replayed, are written out as a checkpoint of the whole policy. Either
+ * way a change is only published once it is durable, so readers never act
+ * on a change a crash could still take back, and once the journal has
+ * failed every further change is refused before it is applied.
+ */
+public class PolicyStore {
+    private final RoleObjectMatrix roleObjectMatrix;
+    private final UserRoleMatrix userRoleMatrix;
+    private final AtomicReference<PolicySnapshot> current;
+    private final PolicyJournal journal;
+    private final PolicyChangeSet changes;
+    private final Deque<Unpublished> unpublished;
+    private PolicySnapshot latest;
+    private long version;
+
+    /**
+     * Takes ownership of an authoring model and publishes its first
+     * snapshot. The matrices must only be changed through this store from
+     * now on.
+     *
+     * @param roleObjectMatrix The role-object matrix.
+     * @param userRoleMatrix   The user-role matrix.
+     */
+    public PolicyStore (RoleObjectMatrix roleObjectMatrix,
+        UserRoleMatrix userRoleMatrix) {
+        this(roleObjectMatrix, userRoleMatrix, null);
+    }
+
+    /**
+     * Takes ownership of an authoring model, publishes its first snapshot
+     * and journals every later change to it.
+     *
+     * @param roleObjectMatrix The role-object matrix.
+     * @param userRoleMatrix   The user-role matrix.
+     * @param journal          The started journal, or {@code null} to keep
+     *                         changes in memory only.
+     */
+    public PolicyStore (RoleObjectMatrix roleObjectMatrix,
+        UserRoleMatrix userRoleMatrix, PolicyJournal journal) {
+        this.roleObjectMatrix = roleObjectMatrix;
+        this.userRoleMatrix = userRoleMatrix;
+        this.journal = journal;
+        this.changes = new PolicyChangeSet();
+        this.unpublished = new ArrayDeque<>();
+        this.version = 0;
+        this.latest = new PolicySnapshot(version, roleObjectMatrix,
+            userRoleMatrix);
+        this.current = new AtomicReference<>(latest);
+        roleObjectMatrix.addChangeListener(changes);
+        userRoleMatrix.addChangeListener(changes);
+    }
+
+    /**
+     * Gives the latest published snapshot. Never blocks.
+     *
+     * @return The current snapshot.
+     */
+    public PolicySnapshot current () {
+        return current.get();
+    }
+
+    /**
+     * Shorthand for checking against the current snapshot.
+     *
+     * @param user       The user asking for access.
+     * @param object     The object to access.
+     * @param permission The permission needed on the object.
+     * @return The decision.
+     */
+    public AccessDecision check (RbacUser user, RbacObject object,
+        RbacPermission permission) {
+        return current.get().check(user, object, permission);
+    }
+
+    /**
+     * Grants a permission and publishes the result.
+     *
+     * @param role       The base role to give the permission.
+     * @param object     The object on which the permission is given.
+     * @param permission The permission to give.
+     * @return true if the permission was added.
+     */
+    public boolean addPermission (RbacRole role,
+        RbacObject object, RbacPermission permission) {
+        return apply(() -> roleObjectMatrix.addPermission(role, object,
+            permission), PolicyJournal.Operation.ADD_PERMISSION, role, object,
+            permission);
+    }
+
+    /**
+     * Revokes a permission and publishes the result.
+     *
+     * @param role       The base role the permission was given to.
+     * @param object     The object on which the permission was given.
+     * @param permission The permission to revoke.
+     * @return true if the permission was revoked.
+     */
+    public boolean revokePermission (RbacRole role,
+        RbacObject object, RbacPermission permission) {
+        return apply(() -> roleObjectMatrix.revokePermission(role, object,
+            permission), PolicyJournal.Operation.REVOKE_PERMISSION, role,
+            object, permission);
+    }
+
+    /**
+     * Adds a role hierarchy relationship and publishes the result.
+     *
+     * @param ascendant  The ascendant role.
+     * @param descendant The descendant role.
+     * @return true if the relationship was added.
+     */
+    public boolean addRelationship (RbacRole ascendant,
+        RbacRole descendant) {
+        return apply(() -> roleObjectMatrix.addRelationship(ascendant,
+            descendant), PolicyJournal.Operation.ADD_RELATIONSHIP, ascendant,
+            descendant);
+    }
+
+    /**
+     * Removes a role hierarchy relationship and publishes the result.
+     *
+     * @param ascendant  The ascendant role.
+     * @param descendant The descendant role.
+     * @return true if the relationship was removed.
+     */
+    public boolean removeRelationship (RbacRole ascendant,
+        RbacRole descendant) {
+        return apply(() -> roleObjectMatrix.removeRelationship(ascendant,
+            descendant), PolicyJournal.Operation.REMOVE_RELATIONSHIP,
+            ascendant, descendant);
+    }
+
+    /**
+     * Adds an object and publishes the result.
+     *
+     * @param object The object to add.
+     * @return true if the object was added.
+     */
+    public boolean addObject (RbacObject object) {
+        return apply(() -> roleObjectMatrix.addObject(object),
+            PolicyJournal.Operation.ADD_OBJECT, object);
+    }
+
+    /**
+     * Gives roles to a new user and publishes the result.
+     *
+     * @param user  The user.
+     * @param roles The roles to give.
+     * @return true if the roles were given.
+     */
+    public boolean giveRolesToUser (RbacUser user,
+        Set<RbacRole> roles) {
+        return apply(() -> userRoleMatrix.giveRolesToUser(user, roles),
+            PolicyJournal.Operation.GIVE_ROLES, userAndRoles(user, roles));
+    }
+
+    /**
+     * Assigns one more role to a user and publishes the result.
+     *
+     * @param user The user.
+     * @param role The role to assign.
+     * @return true if the role was assigned.
+     */
+    public boolean assignRole (RbacUser user, RbacRole role) {
+        return apply(() -> userRoleMatrix.assignRole(user, role),
+            PolicyJournal.Operation.ASSIGN_ROLE, user, role);
+    }
+
+    /**
+     * Takes one role away from a user and publishes the result.
+     *
+     * @param user The user.
+     * @param role The role to take away.
+     * @return true if the role was taken away.
+     */
+    public boolean deassignRole (RbacUser user, RbacRole role) {
+        return apply(() -> userRoleMatrix.deassignRole(user, role),
+            PolicyJournal.Operation.DEASSIGN_ROLE, user, role);
+    }
+
+    /**
+     * Removes a user and publishes the result.
+     *
+     * @param user The user to remove.
+     * @return true if the user was removed.
+     */
+    public boolean removeUser (RbacUser user) {
+        return apply(() -> userRoleMatrix.removeUser(user),
+            PolicyJournal.Operation.REMOVE_USER, user);
+    }
+
+    /**
+     * Applies any number of changes to the authoring model and publishes
+     * them together as one new snapshot.
+     *
+     * @param change The changes to make.
+     * @throws UncheckedIOException If the journal has failed or the
+     *                              checkpoint can't be written.
+     */
+    public synchronized void update (BiConsumer<RoleObjectMatrix,
+        UserRoleMatrix> change) {
+        checkJournal();
+        change.accept(roleObjectMatrix, userRoleMatrix);
+        deriveSnapshot();
+        checkpoint();
+        publishLatest();
+    }
+
+    /**
+     * Applies any number of changes to the authoring model and publishes
+     * them together as one new snapshot, unless the changes report that
+     * nothing changed.
+     *
+     * @param change The changes to make, returning true if anything changed.
+     * @return true if a new snapshot was published.
+     * @throws UncheckedIOException If the journal has failed or the
+     *                              checkpoint can't be written.
+     */
+    public synchronized boolean updateIfChanged (BiPredicate<RoleObjectMatrix,
+        UserRoleMatrix> change) {
+        checkJournal();
+        boolean changed = change.test(roleObjectMatrix, userRoleMatrix);
+        if (changed) {
+            deriveSnapshot();
+            checkpoint();
+            publishLatest();
+        }
+        return changed;
+    }
+
+    /**
+     * Applies a single change and, if it changed anything, journals it and
+     * publishes it once it is durable. Waits for the journal outside the
+     * lock, so writers arriving meanwhile can join the same group commit;
+     * their snapshots queue up meanwhile and are published in order.
+     *
+     * @param change    The change to make, returning true if it changed
+     *                  anything.
+     * @param operation The change as journaled.
+     * @param elements  The change's arguments as journaled.
+     * @return true if the change changed anything.
+     * @throws UncheckedIOException If the journal has failed or can't be
+     *                              written.
+     */
+    private boolean apply (BooleanSupplier change,
+        PolicyJournal.Operation operation, RbacElement... elements) {
+        long sequence;
+        synchronized (this) {
+            checkJournal();
+            if (!change.getAsBoolean()) {
+                return false;
+            }
+            PolicySnapshot snapshot = deriveSnapshot();
+            if (journal == null) {
+                current.set(snapshot);
+                return true;
+            }
+            sequence = journal.append(operation, elements);
+            unpublished.add(new Unpublished(sequence, snapshot));
+            if (journal.needsCheckpoint()) {
+                checkpoint();
+            }
+        }
+        try {
+            journal.sync(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        publishDurable(sequence);
+        return true;
+    }
+
+    /**
+     * Refuses to change anything once the journal has failed, since the
+     * change could never be made durable. Callers must hold this store's
+     * lock.
+     *
+     * @throws UncheckedIOException If the journal has failed.
+     */
+    private void checkJournal () {
+        if (journal != null) {
+            try {
+                journal.checkFailure();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes a checkpoint of the whole policy, if journaling. Callers must
+     * hold this store's lock.
+     *
+     * @throws UncheckedIOException If the checkpoint can't be written.
+     */
+    private void checkpoint () {
+        if (journal != null) {
+            try {
+                journal.checkpoint(roleObjectMatrix, userRoleMatrix);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static RbacElement[] userAndRoles (RbacUser user,
+        Set<RbacRole> roles) {
+        RbacElement[] elements = new RbacElement[roles.size() + 1];
+        elements[0] = user;
+        int i = 1;
+        for (RbacRole role : roles) {
+            elements[i++] = role;
+        }
+        return elements;
+    }
+
+    /**
+     * Derives a new snapshot from the latest one and the changes made to the
+     * authoring model since, without publishing it. Callers must hold this
+     * store's lock.
+     *
+     * @return The new snapshot.
+     */
+    private PolicySnapshot deriveSnapshot () {
+        version++;
+        latest = new PolicySnapshot(version, latest, changes,
+            roleObjectMatrix, userRoleMatrix);
+        changes.clear();
+        return latest;
+    }
+
+    /**
+     * Publishes the newest snapshot whose change is durable, dropping the
+     * older ones it includes. Another writer may have published it already.
+     *
+     * @param sequence The journal sequence number known to be durable.
+     */
+    private synchronized void publishDurable (long sequence) {
+        PolicySnapshot snapshot = null;
+        while (!unpublished.isEmpty() &&
+            unpublished.peek().sequence <= sequence) {
+            snapshot = unpublished.poll().snapshot;
+        }
+        if (snapshot != null) {
+            current.set(snapshot);
+        }
+    }
+
+    /**
+     * Publishes the latest snapshot once a checkpoint has made everything
+     * durable. Callers must hold this store's lock.
+     */
+    private void publishLatest () {
+        unpublished.clear();
+        current.set(latest);
+    }
+
+    /**
+     * A snapshot waiting for its change to reach the journal's disk.
+     */
+    private static class Unpublished {
+        private final long sequence;
+        private final PolicySnapshot snapshot;
+
+        private Unpublished (long sequence, PolicySnapshot snapshot) {
+            this.sequence = sequence;
+            this.snapshot = snapshot;
+        }
+    }
+}
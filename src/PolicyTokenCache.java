@@ -0,0 +1,97 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Resolves raw token bytes to canonical elements without building a string
+ * per token. Sits in front of a RbacSymbolTable and only creates a string the
+ * first time it sees a given token. Not thread-safe; give each loading thread
+ * its own cache.
+ *
+ * @param <T> The type of element resolved by this cache.
+ */
+public class PolicyTokenCache<T extends RbacElement> {
+    private final RbacSymbolTable<T> symbols;
+    private byte[][] keys;
+    private Object[] values;
+    private int size;
+
+    /**
+     * Constructs a new empty cache.
+     *
+     * @param symbols The symbol table tokens are interned into.
+     */
+    public PolicyTokenCache (RbacSymbolTable<T> symbols) {
+        this.symbols = symbols;
+        this.keys = new byte[64][];
+        this.values = new Object[64];
+    }
+
+    /**
+     * Gives the canonical element for a token.
+     *
+     * @param data  The buffer holding the token.
+     * @param start The first byte of the token, inclusive.
+     * @param end   The last byte of the token, exclusive.
+     * @return The canonical element.
+     */
+    @SuppressWarnings("unchecked")
+    public T intern (byte[] data, int start, int end) {
+        int mask = keys.length - 1;
+        int slot = hash(data, start, end) & mask;
+        while (keys[slot] != null) {
+            if (matches(keys[slot], data, start, end)) {
+                return (T)values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        T element = symbols.intern(new String(data, start, end - start,
+            StandardCharsets.UTF_8));
+        keys[slot] = Arrays.copyOfRange(data, start, end);
+        values[slot] = element;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+        return element;
+    }
+
+    private void grow () {
+        byte[][] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new byte[oldKeys.length * 2][];
+        values = new Object[oldValues.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) {
+                continue;
+            }
+            int slot = hash(oldKeys[i], 0, oldKeys[i].length) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private static int hash (byte[] data, int start, int end) {
+        int h = 0x811C9DC5;
+        for (int i = start; i < end; i++) {
+            h = (h ^ data[i]) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches (byte[] key, byte[] data, int start,
+        int end) {
+        if (key.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != data[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,363 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads the permissions and users files of a PolicyStore whenever they
+ * change on disk, without restarting and without pausing readers.
+ * <p>
+ * A background thread watches the files' directories. Once a changed file
+ * has been quiet for a moment it is parsed and validated on that thread,
+ * off the store's lock, and diffed: permission grants against the content
+ * applied last, since the live matrix also holds grants that come from the
+ * hierarchy rather than the file, and user assignments against the live
+ * UserRoleMatrix. Only the delta is then applied, through one store update,
+ * so the change is published atomically as a single new snapshot while
+ * readers keep checking against the previous one.
+ * <p>
+ * A file that can't be read or has an invalid line, or a users file
+ * breaking an SSD constraint or repeating a user, is reported and ignored;
+ * the live policy stays as it was until the file is fixed. A reload that
+ * fails unexpectedly is reported too, and watching carries on.
+ */
+public class PolicyWatcher implements Closeable {
+    private static final long QUIET_MILLIS = 100;
+
+    private final PolicyStore store;
+    private final Path permissionsFile;
+    private final Path usersFile;
+    private final WatchService watchService;
+    private final Thread thread;
+    private Set<Grant> appliedGrants;
+    private volatile boolean running;
+    private volatile long reloadCount;
+
+    /**
+     * Constructs a watcher for a store loaded from the given files. Call
+     * start to begin watching.
+     *
+     * @param store           The store to keep current.
+     * @param permissionsFile The permissions file the store was loaded from.
+     * @param usersFile       The users file the store was loaded from.
+     * @throws IOException If the files' directories can't be watched.
+     */
+    public PolicyWatcher (PolicyStore store, String permissionsFile,
+        String usersFile) throws IOException {
+        this.store = store;
+        this.permissionsFile = Paths.get(permissionsFile).toAbsolutePath();
+        this.usersFile = Paths.get(usersFile).toAbsolutePath();
+        this.watchService = FileSystems.getDefault().newWatchService();
+        Set<Path> dirs = new HashSet<>(Arrays.asList(
+            this.permissionsFile.getParent(), this.usersFile.getParent()));
+        for (Path dir : dirs) {
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        // The startup loader skipped invalid lines, so skip them here too.
+        Set<Grant> grants = readGrants(true);
+        this.appliedGrants = grants != null ? grants : new HashSet<>();
+        this.thread = new Thread(this::watch, "policy-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts watching on a background thread.
+     */
+    public void start () {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stops watching.
+     *
+     * @throws IOException If the watch service can't be closed.
+     */
+    @Override
+    public void close () throws IOException {
+        running = false;
+        watchService.close();
+    }
+
+    /**
+     * Gives the number of reloads that published a new snapshot.
+     *
+     * @return The reload count.
+     */
+    public long getReloadCount () {
+        return reloadCount;
+    }
+
+    private void watch () {
+        try {
+            while (running) {
+                boolean permissionsChanged = false;
+                boolean usersChanged = false;
+                WatchKey key = watchService.take();
+                // Editors write a file in several steps; wait for quiet.
+                while (key != null) {
+                    Path dir = (Path)key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (!(event.context() instanceof Path)) {
+                            continue;
+                        }
+                        Path file = dir.resolve((Path)event.context());
+                        permissionsChanged |= file.equals(permissionsFile);
+                        usersChanged |= file.equals(usersFile);
+                    }
+                    key.reset();
+                    key = watchService.poll(QUIET_MILLIS,
+                        TimeUnit.MILLISECONDS);
+                }
+                if (permissionsChanged || usersChanged) {
+                    try {
+                        reload(permissionsChanged, usersChanged);
+                    } catch (RuntimeException e) {
+                        // Keep watching: the next save may fix the cause.
+                        System.err.printf("Policy reload failed: %s%n", e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The watcher was closed.
+        }
+    }
+
+    /**
+     * Reads the changed files, diffs them against the live policy and
+     * publishes the delta, if any, as one new snapshot.
+     *
+     * @param permissions Whether to reload the permissions file.
+     * @param users       Whether to reload the users file.
+     * @return true if a new snapshot was published.
+     */
+    public synchronized boolean reload (boolean permissions, boolean users) {
+        long start = System.nanoTime();
+        Set<Grant> grants = permissions ? readGrants(false) : null;
+        Map<RbacUser, Set<RbacRole>> assignments = users ? readUsers() : null;
+
+        List<Grant> added = new ArrayList<>();
+        List<Grant> revoked = new ArrayList<>();
+        if (grants != null) {
+            for (Grant grant : grants) {
+                if (!appliedGrants.contains(grant)) {
+                    added.add(grant);
+                }
+            }
+            for (Grant grant : appliedGrants) {
+                if (!grants.contains(grant)) {
+                    revoked.add(grant);
+                }
+            }
+        }
+
+        int[] usersChanged = new int[1];
+        boolean published = store.updateIfChanged((roleObjectMatrix,
+            userRoleMatrix) -> {
+            boolean changed = false;
+            for (Grant grant : revoked) {
+                changed |= roleObjectMatrix.revokePermission(grant.role,
+                    grant.object, grant.permission);
+            }
+            for (Grant grant : added) {
+                changed |= roleObjectMatrix.addPermission(grant.role,
+                    grant.object, grant.permission);
+            }
+            if (assignments != null) {
+                usersChanged[0] = applyUsers(userRoleMatrix, assignments);
+            }
+            return changed || usersChanged[0] > 0;
+        });
+
+        if (grants != null) {
+            appliedGrants = grants;
+        }
+        if (published) {
+            reloadCount++;
+            System.err.printf("Reloaded policy version %d in %.1f ms: %d " +
+                    "grants added, %d revoked, %d users changed.%n",
+                store.current().getVersion(),
+                (System.nanoTime() - start) / 1e6, added.size(),
+                revoked.size(), usersChanged[0]);
+        }
+        return published;
+    }
+
+    /**
+     * Brings the live users in line with a validated users file.
+     *
+     * @param userRoleMatrix The live matrix.
+     * @param assignments    Every user's roles from the file.
+     * @return The number of users added, changed or removed.
+     */
+    private static int applyUsers (UserRoleMatrix userRoleMatrix,
+        Map<RbacUser, Set<RbacRole>> assignments) {
+        int changed = 0;
+        List<RbacUser> removed = new ArrayList<>();
+        for (RbacUser user : userRoleMatrix.getUsers()) {
+            if (!assignments.containsKey(user)) {
+                removed.add(user);
+            }
+        }
+        for (RbacUser user : removed) {
+            userRoleMatrix.removeUser(user);
+            changed++;
+        }
+        for (Map.Entry<RbacUser, Set<RbacRole>> entry :
+            assignments.entrySet()) {
+            RbacUser user = entry.getKey();
+            Set<RbacRole> roles = entry.getValue();
+            Set<RbacRole> current = userRoleMatrix.getRoles(user);
+            if (current == null) {
+                userRoleMatrix.giveRolesToUser(user, roles);
+                changed++;
+                continue;
+            }
+            if (roles.equals(current)) {
+                continue;
+            }
+            // Deassign first: every set passed through on the way is then a
+            // subset of the validated new one, so no assignment is refused.
+            for (RbacRole role : new ArrayList<>(current)) {
+                if (!roles.contains(role)) {
+                    userRoleMatrix.deassignRole(user, role);
+                }
+            }
+            for (RbacRole role : roles) {
+                userRoleMatrix.assignRole(user, role);
+            }
+            changed++;
+        }
+        return changed;
+    }
+
+    /**
+     * Reads every grant in the permissions file. A line with fewer than
+     * three fields is reported like the startup loader reports it, and
+     * rejects the whole file, since a half-written grant would otherwise
+     * read as a revocation.
+     *
+     * @param skipInvalid Whether to skip invalid lines silently instead.
+     * @return The grants, or {@code null} if the file can't be read or a
+     * line is invalid.
+     */
+    private Set<Grant> readGrants (boolean skipInvalid) {
+        PolicyFileReader reader =
+            new PolicyFileReader(permissionsFile.toString());
+        PolicyTokenCache<RbacRole> roles =
+            new PolicyTokenCache<>(RbacRole.SYMBOLS);
+        PolicyTokenCache<RbacObject> objects =
+            new PolicyTokenCache<>(RbacObject.SYMBOLS);
+        PolicyTokenCache<RbacPermission> permissions =
+            new PolicyTokenCache<>(RbacPermission.SYMBOLS);
+        Set<Grant> grants = new HashSet<>();
+        String[] error = new String[1];
+        try {
+            reader.read(row -> {
+                if (row.size() < 3) {
+                    if (skipInvalid) {
+                        return true;
+                    }
+                    error[0] = String.format("Invalid line found in %s on " +
+                        "line %d", permissionsFile, row.getLineNumber());
+                    return false;
+                }
+                RbacPermission permission = row.getElement(1, permissions);
+                // On the initial read the startup loader has warned already.
+                if (permission.hasMisplacedStar() && !skipInvalid) {
+                    System.err.printf("Permission %s in %s on line %d mixes " +
+                        "digits with a star, so it is not a wildcard.%n",
+                        permission, permissionsFile, row.getLineNumber());
+                }
+                grants.add(new Grant(row.getElement(0, roles),
+                    row.getElement(2, objects), permission));
+                return true;
+            });
+        } catch (IOException e) {
+            error[0] = e.getMessage();
+        }
+        if (error[0] != null) {
+            System.err.printf("Permissions file %s was not reloaded: %s%n",
+                permissionsFile, error[0]);
+            return null;
+        }
+        return grants;
+    }
+
+    /**
+     * Reads and validates every user in the users file.
+     *
+     * @return Every user's roles, or {@code null} if the file can't be read
+     * or a line is invalid.
+     */
+    private Map<RbacUser, Set<RbacRole>> readUsers () {
+        PolicyFileReader reader = new PolicyFileReader(usersFile.toString());
+        PolicyTokenCache<RbacUser> users =
+            new PolicyTokenCache<>(RbacUser.SYMBOLS);
+        PolicyTokenCache<RbacRole> roleTokens =
+            new PolicyTokenCache<>(RbacRole.SYMBOLS);
+        SsdConstraintSet constraints = store.current().getConstraints();
+        Map<RbacUser, Set<RbacRole>> assignments = new HashMap<>();
+        String[] error = new String[1];
+        try {
+            reader.read(row -> {
+                RbacUser user = row.getElement(0, users);
+                Set<RbacRole> roles = new HashSet<>();
+                for (int i = 1; i < row.size(); i++) {
+                    roles.add(row.getElement(i, roleTokens));
+                }
+                if (assignments.put(user, roles) != null) {
+                    error[0] = String.format("line %d repeats user %s",
+                        row.getLineNumber(), user);
+                } else if (!constraints.testAgainstAll(roles)) {
+                    error[0] = String.format("line %d breaks constraint #%d",
+                        row.getLineNumber(),
+                        constraints.indexOfFirstBrokenConstraint(roles));
+                }
+                return error[0] == null;
+            });
+        } catch (IOException e) {
+            error[0] = e.getMessage();
+        }
+        if (error[0] != null) {
+            System.err.printf("Users file %s was not reloaded: %s%n",
+                usersFile, error[0]);
+            return null;
+        }
+        return assignments;
+    }
+
+    /**
+     * One line of a permissions file.
+     */
+    private static class Grant {
+        private final RbacRole role;
+        private final RbacObject object;
+        private final RbacPermission permission;
+
+        private Grant (RbacRole role, RbacObject object,
+            RbacPermission permission) {
+            this.role = role;
+            this.object = object;
+            this.permission = permission;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (!(o instanceof Grant)) {
+                return false;
+            }
+            Grant that = (Grant)o;
+            return role.equals(that.role) && object.equals(that.object) &&
+                permission.equals(that.permission);
+        }
+
+        @Override
+        public int hashCode () {
+            return (role.hashCode() * 31 + object.hashCode()) * 31 +
+                permission.hashCode();
+        }
+    }
+}
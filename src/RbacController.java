@@ -1,9 +1,15 @@
-import java.util.HashSet;
-import java.util.Set;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.stream.Stream;
 
 public class RbacController {
+    private static final RbacComparator RBAC_COMPARATOR = new RbacComparator();
+    private static final int KEY_LIMIT = 1 << 21;
+
     private RoleObjectMatrix roleObjectMatrix;
     private UserRoleMatrix userRoleMatrix;
+    private EffectivePermissionIndex effectivePermissions;
+    private DecisionCache decisionCache;
 
     public RbacController (RoleObjectMatrix roleObjectMatrix, UserRoleMatrix
         userRoleMatrix) {
@@ -11,56 +17,439 @@ public class RbacController {
         this.userRoleMatrix = userRoleMatrix;
     }
 
+    /**
+     * Builds a materialized user-object-permission index and uses it for
+     * single permission checks from now on. The index follows later changes
+     * to either matrix incrementally.
+     *
+     * @return The index, e.g. to report its memory cost.
+     */
+    public EffectivePermissionIndex enableEffectivePermissionIndex () {
+        if (effectivePermissions == null) {
+            effectivePermissions = new EffectivePermissionIndex(
+                roleObjectMatrix, userRoleMatrix);
+            roleObjectMatrix.addChangeListener(effectivePermissions);
+            userRoleMatrix.addChangeListener(effectivePermissions);
+        }
+        return effectivePermissions;
+    }
+
+    /**
+     * Drops the materialized index, if enabled, and goes back to computing
+     * permissions from the user's roles on every check.
+     */
+    public void disableEffectivePermissionIndex () {
+        if (effectivePermissions != null) {
+            roleObjectMatrix.removeChangeListener(effectivePermissions);
+            userRoleMatrix.removeChangeListener(effectivePermissions);
+            effectivePermissions = null;
+        }
+    }
+
+    /**
+     * Gives the materialized index, if enabled.
+     *
+     * @return The index, or {@code null} if not enabled.
+     */
+    public EffectivePermissionIndex getEffectivePermissionIndex () {
+        return effectivePermissions;
+    }
+
+    /**
+     * Puts a bounded decision cache in front of single permission checks.
+     * The cache follows changes to either matrix and never serves a decision
+     * made under an older policy.
+     *
+     * @param capacity The maximum number of decisions held.
+     * @param eviction The eviction policy.
+     * @return The cache, e.g. to read its statistics.
+     */
+    public DecisionCache enableDecisionCache (int capacity,
+        DecisionCache.Eviction eviction) {
+        disableDecisionCache();
+        decisionCache = new DecisionCache(capacity, eviction);
+        roleObjectMatrix.addChangeListener(decisionCache);
+        userRoleMatrix.addChangeListener(decisionCache);
+        return decisionCache;
+    }
+
+    /**
+     * Drops the decision cache, if enabled.
+     */
+    public void disableDecisionCache () {
+        if (decisionCache != null) {
+            roleObjectMatrix.removeChangeListener(decisionCache);
+            userRoleMatrix.removeChangeListener(decisionCache);
+            decisionCache = null;
+        }
+    }
+
+    /**
+     * Gives the decision cache, if enabled.
+     *
+     * @return The cache, or {@code null} if not enabled.
+     */
+    public DecisionCache getDecisionCache () {
+        return decisionCache;
+    }
+
+    /**
+     * Decides a single access check. Meant for embedding in a service: it
+     * prints nothing and, once the elements are interned, allocates nothing
+     * unless the decision cache is enabled.
+     *
+     * @param user       The user asking for access.
+     * @param object     The object to access.
+     * @param permission The permission needed on the object.
+     * @return The decision.
+     */
+    public AccessDecision check (RbacUser user, RbacObject object,
+        RbacPermission permission) {
+        if (!RbacMetrics.enabled) {
+            return checkCached(user, object, permission);
+        }
+        long start = System.nanoTime();
+        AccessDecision decision = checkCached(user, object, permission);
+        RbacMetrics.getInstance().recordCheck(decision,
+            System.nanoTime() - start);
+        return decision;
+    }
+
+    /**
+     * Decides a single access check through the decision cache, if enabled.
+     *
+     * @param user       The user asking for access.
+     * @param object     The object to access.
+     * @param permission The permission needed on the object.
+     * @return The decision.
+     */
+    private AccessDecision checkCached (RbacUser user, RbacObject object,
+        RbacPermission permission) {
+        DecisionCache cache = decisionCache;
+        if (cache == null) {
+            return decide(user, object, permission);
+        }
+        long key = DecisionCache.keyOf(user, object, permission);
+        if (key < 0) {
+            return decide(user, object, permission);
+        }
+        AccessDecision decision = cache.get(key);
+        if (decision == null) {
+            long version = cache.getPolicyVersion();
+            decision = decide(user, object, permission);
+            cache.put(key, decision, version);
+        }
+        return decision;
+    }
+
+    /**
+     * Decides a single access check from the matrices or the materialized
+     * index, without the decision cache.
+     *
+     * @param user       The user asking for access.
+     * @param object     The object to access.
+     * @param permission The permission needed on the object.
+     * @return The decision.
+     */
+    private AccessDecision decide (RbacUser user, RbacObject object,
+        RbacPermission permission) {
+        RbacRole[] roles = userRoleMatrix.getRoleArray(user);
+        if (roles == null) {
+            return AccessDecision.UNKNOWN_USER;
+        }
+        if (!roleObjectMatrix.getObjects().contains(object)) {
+            return AccessDecision.UNKNOWN_OBJECT;
+        }
+
+        if (effectivePermissions != null) {
+            return effectivePermissions.hasPermission(user, object,
+                permission) ? AccessDecision.GRANTED : AccessDecision.DENIED;
+        }
+        for (int i = 0; i < roles.length; i++) {
+            if (roleObjectMatrix.hasPermission(roles[i], object, permission)) {
+                return AccessDecision.GRANTED;
+            }
+        }
+        return AccessDecision.DENIED;
+    }
+
+    /**
+     * Checks many access requests at once, without printing anything.
+     * Requests are grouped by user, and users by their set of roles: each
+     * user is validated and resolved to its roles once per batch, and each
+     * distinct (role set, object, permission) is decided once, however many
+     * users sharing that role set ask for it.
+     *
+     * @param requests The requests to check.
+     * @return A bit set where bit i is set if request i is granted. Requests
+     * for unknown users or objects are denied.
+     */
+    public BitSet checkAll (List<AccessRequest> requests) {
+        BitSet granted = new BitSet(requests.size());
+        Map<RbacUser, RoleGroup> groupsByUser = new HashMap<>();
+        Map<Set<RbacRole>, RoleGroup> groups = new HashMap<>();
+        Map<Long, Boolean> decisions = new HashMap<>();
+        Set<RbacObject> objects = roleObjectMatrix.getObjects();
+
+        RbacUser lastUser = null;
+        RoleGroup group = null;
+        for (int i = 0; i < requests.size(); i++) {
+            AccessRequest request = requests.get(i);
+            if (request.getUser() != lastUser) {
+                lastUser = request.getUser();
+                group = groupsByUser.computeIfAbsent(lastUser,
+                    user -> getRoleGroup(user, groups));
+            }
+            if (group.roles.length == 0 ||
+                !objects.contains(request.getObject())) {
+                continue;
+            }
+
+            long key = decisionKey(group, request.getObject(),
+                request.getPermission());
+            Boolean decision = key < 0 ? null : decisions.get(key);
+            if (decision == null) {
+                decision = decide(request.getUser(), group.roles,
+                    request.getObject(), request.getPermission());
+                if (key >= 0) {
+                    decisions.put(key, decision);
+                }
+            }
+            if (decision) {
+                granted.set(i);
+            }
+        }
+
+        return granted;
+    }
+
+    /**
+     * Decides a request for a known user on a known object, from the
+     * materialized index if enabled or else from the user's roles.
+     *
+     * @param user       The user asking for access.
+     * @param roles      The user's roles.
+     * @param object     The object to access.
+     * @param permission The permission needed on the object.
+     * @return true if granted.
+     */
+    private boolean decide (RbacUser user, RbacRole[] roles,
+        RbacObject object, RbacPermission permission) {
+        if (effectivePermissions != null) {
+            return effectivePermissions.hasPermission(user, object,
+                permission);
+        }
+        for (RbacRole role : roles) {
+            if (roleObjectMatrix.hasPermission(role, object, permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives the group of users sharing a user's set of roles, making it the
+     * first time that set is seen.
+     *
+     * @param user   The user.
+     * @param groups The groups made so far, keyed by role set.
+     * @return The user's group, or an empty group if the user is unknown.
+     */
+    private RoleGroup getRoleGroup (RbacUser user,
+        Map<Set<RbacRole>, RoleGroup> groups) {
+        Set<RbacRole> userRoles = userRoleMatrix.getRoles(user);
+        if (userRoles == null) {
+            return RoleGroup.NONE;
+        }
+        return groups.computeIfAbsent(userRoles, roles -> new RoleGroup(
+            groups.size(), roles.toArray(new RbacRole[0])));
+    }
+
+    /**
+     * Packs a role group, object and permission into one key for sharing
+     * decisions within a batch.
+     *
+     * @param group      The role group.
+     * @param object     The object.
+     * @param permission The permission.
+     * @return The key, or -1 if an id is missing or too large to pack.
+     */
+    private static long decisionKey (RoleGroup group, RbacObject object,
+        RbacPermission permission) {
+        int objectId = CompiledRoleObjectMatrix.idOf(object);
+        int permissionId = CompiledRoleObjectMatrix.idOf(permission);
+        if ((group.id | objectId | permissionId) < 0 ||
+            group.id >= KEY_LIMIT || objectId >= KEY_LIMIT ||
+            permissionId >= KEY_LIMIT) {
+            return -1;
+        }
+        return (long)group.id << 42 | (long)objectId << 21 | permissionId;
+    }
+
+    /**
+     * Users of one checkAll batch sharing the same set of roles.
+     */
+    private static class RoleGroup {
+        private static final RoleGroup NONE =
+            new RoleGroup(-1, new RbacRole[0]);
+
+        private final int id;
+        private final RbacRole[] roles;
+
+        private RoleGroup (int id, RbacRole[] roles) {
+            this.id = id;
+            this.roles = roles;
+        }
+    }
+
+    /**
+     * Gives every user who may use a permission on an object, for access
+     * reviews. The roles holding the permission come from the role-object
+     * matrix's reverse index, already expanded through the hierarchy, and
+     * their users from the user-role matrix. The users are streamed, each
+     * once: a user is given only under the lowest numbered of its roles that
+     * hold the permission, so no set of seen users is kept. The matrices must
+     * not change while the stream is consumed.
+     *
+     * @param object     The object.
+     * @param permission The permission.
+     * @return The users.
+     */
+    public Stream<RbacUser> whoCan (RbacObject object,
+        RbacPermission permission) {
+        Set<RbacRole> roles =
+            roleObjectMatrix.getRolesWithPermission(object, permission);
+        return roles.stream().flatMap(role -> userRoleMatrix
+            .getUsersWithRole(role).stream()
+            .filter(user -> isFirstHolder(user, role, roles)));
+    }
+
+    /**
+     * Checks if a role is the lowest numbered of a user's roles among those
+     * holding a permission.
+     *
+     * @param user    The user.
+     * @param role    One of the user's roles holding the permission.
+     * @param holders Every role holding the permission.
+     * @return true if no lower numbered role of the user holds it.
+     */
+    private boolean isFirstHolder (RbacUser user, RbacRole role,
+        Set<RbacRole> holders) {
+        for (RbacRole other : userRoleMatrix.getRoleArray(user)) {
+            if (other.id < role.id && holders.contains(other)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Prints, for every object the user holds any permission on, the object
+     * followed by those permissions. Objects are listed in sorted order.
+     *
+     * @param user The user to report on.
+     * @param out  Where to print the report.
+     */
+    public void reportPermissions (RbacUser user, PrintStream out) {
+        List<RbacObject> sortedObjects =
+            new ArrayList<>(roleObjectMatrix.getObjects());
+        sortedObjects.sort(RBAC_COMPARATOR);
+        for (RbacObject object : sortedObjects) {
+            reportPermissions(user, object, out);
+        }
+    }
+
+    /**
+     * Prints the object followed by every permission the user holds on it,
+     * or nothing if the user holds no permission on it.
+     *
+     * @param user   The user to report on.
+     * @param object The object to report on.
+     * @param out    Where to print the report.
+     */
+    public void reportPermissions (RbacUser user, RbacObject object,
+        PrintStream out) {
+        Set<RbacRole> userRoles = userRoleMatrix.getRoles(user);
+        if (userRoles == null) {
+            return;
+        }
+        Set<RbacPermission> objectPermissions = new HashSet<>();
+        for (RbacRole queryRole : userRoles) {
+            Set<RbacPermission> objectPermissionsForRole = roleObjectMatrix
+                .getObjectPermissionsForRole(queryRole, object);
+            objectPermissions.addAll(objectPermissionsForRole);
+        }
+
+        if (objectPermissions.size() > 0) {
+            out.printf("%s\t", object.toString());
+            objectPermissions.stream().limit(1).forEach(x -> out
+                .print(x.toString()));
+            objectPermissions.stream().skip(1).forEach(x -> out
+                .printf(", %s", x.toString()));
+            out.println();
+        }
+    }
+
+    /**
+     * Answers an interactive query, printing the outcome. With a permission
+     * it prints "Accepted" or "Rejected"; without one it lists the user's
+     * permissions instead.
+     *
+     * @param user       The user to query.
+     * @param object     The object to query, or {@code null} for all objects.
+     * @param permission The permission to query, or {@code null} to list.
+     * @return true if the permission is held on the object, or on every
+     * object if none was given. Always true when listing a valid user.
+     */
     public boolean query (RbacUser user, RbacObject object,
+        RbacPermission permission) {
+        if (!RbacMetrics.enabled) {
+            return answerQuery(user, object, permission);
+        }
+        long start = System.nanoTime();
+        boolean returnValue = answerQuery(user, object, permission);
+        RbacMetrics.getInstance().recordQuery(System.nanoTime() - start);
+        return returnValue;
+    }
+
+    private boolean answerQuery (RbacUser user, RbacObject object,
         RbacPermission permission) {
         if (!userRoleMatrix.getUsers().contains(user)) {
             System.out.println("Invalid user.");
             return false;
         }
-        Set<RbacRole> userRoles = userRoleMatrix.getRoles(user);
+        if (object != null && !roleObjectMatrix.getObjects()
+            .contains(object)) {
+            System.out.println("Invalid object.");
+            return false;
+        }
 
-        Set<RbacObject> objects = new HashSet<>();
-        if (object == null) {
-            objects.addAll(roleObjectMatrix.getObjects());
-        } else {
-            if (!roleObjectMatrix.getObjects().contains(object)) {
-                System.out.println("Invalid object.");
-                return false;
+        if (permission == null) {
+            if (object == null) {
+                reportPermissions(user, System.out);
+            } else {
+                reportPermissions(user, object, System.out);
             }
-            objects.add(object);
+            return true;
         }
 
         boolean returnValue = true;
-        for (RbacObject queryObject : objects) {
-            Set<RbacPermission> objectPermissions = new HashSet<>();
-            for (RbacRole queryRole : userRoles) {
-                Set<RbacPermission> objectPermissionsForRole = roleObjectMatrix
-                    .getObjectPermissionsForRole(queryRole, queryObject);
-                objectPermissions.addAll(objectPermissionsForRole);
-            }
-
-            if (permission != null) {
-                if (!objectPermissions.contains(permission)) {
+        if (object == null) {
+            for (RbacObject queryObject : roleObjectMatrix.getObjects()) {
+                if (check(user, queryObject, permission) !=
+                    AccessDecision.GRANTED) {
                     returnValue = false;
                 }
-            } else {
-                if (objectPermissions.size() > 0) {
-                    System.out.printf("%s\t", queryObject.toString());
-                    objectPermissions.stream().limit(1).forEach(x -> System.out
-                        .print(x.toString()));
-                    objectPermissions.stream().skip(1).forEach(x -> System.out
-                        .printf(", %s", x.toString()));
-                    System.out.println();
-                }
             }
+        } else {
+            returnValue = check(user, object, permission) ==
+                AccessDecision.GRANTED;
         }
 
-        if (permission != null) {
-            if (returnValue) {
-                System.out.println("Accepted");
-            } else {
-                System.out.println("Rejected");
-            }
+        if (returnValue) {
+            System.out.println("Accepted");
+        } else {
+            System.out.println("Rejected");
         }
 
         return returnValue;
@@ -1,25 +1,53 @@
 public abstract class RbacElement {
-    public String name;
-    public int number;
+    public final String name;
+    public final int number;
+
+    private final String text;
+    private final int hash;
+    int id = -1;
 
     public RbacElement (String name) {
-        this.name = name.replaceAll("\\d+", "");
-        String numStr = name.replaceAll("\\D+", "");
-        if (numStr.length() > 0) {
-            number = Integer.parseInt(numStr);
+        StringBuilder letters = new StringBuilder(name.length());
+        StringBuilder digits = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            } else {
+                letters.append(c);
+            }
+        }
+        this.name = letters.toString().intern();
+        if (digits.length() > 0) {
+            number = Integer.parseInt(digits.toString());
         } else {
             number = -1;
         }
+        String canonicalText = number < 0 ? this.name : this.name + number;
+        this.text = canonicalText.equals(name) ? name : canonicalText;
+        this.hash = text.hashCode();
     }
 
     public RbacElement (RbacElement other) {
         this.name = other.name;
         this.number = other.number;
+        this.text = other.text;
+        this.hash = other.hash;
+    }
+
+    /**
+     * Gives the dense id handed out when this element was interned into its
+     * type's symbol table.
+     *
+     * @return The id, or -1 if this instance was never interned.
+     */
+    public int getId () {
+        return id;
     }
 
     @Override
     public String toString () {
-        return number < 0 ? name : name + number;
+        return text;
     }
 
     @Override
@@ -32,13 +60,18 @@ public abstract class RbacElement {
         }
 
         RbacElement that = (RbacElement)o;
+        if (this.id >= 0 && that.id >= 0 && this.getClass() == that
+            .getClass()) {
+            return this.id == that.id;
+        }
 
-        return this.name.equals(that.name) && ((this.number < 0 && that
-            .number < 0) || this.number == that.number);
+        return this.hash == that.hash && this.name.equals(that.name) &&
+            ((this.number < 0 && that.number < 0) ||
+                this.number == that.number);
     }
 
     @Override
     public int hashCode () {
-        return this.toString().hashCode();
+        return hash;
     }
 }
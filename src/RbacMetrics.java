@@ -0,0 +1,246 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts what the engine does: check outcomes and latencies, query
+ * latencies, how far each grant propagates through the hierarchy and how
+ * long each policy file took to load. Counters are striped, so threads
+ * checking concurrently don't contend, and a disabled instance costs a
+ * single volatile read per check. Exported over JMX by {@link #register()}
+ * and as text by {@link #dump()}.
+ * <p>
+ * Metrics start disabled unless the system property rbac.metrics is true.
+ * Main registers the MBean in every mode regardless, so collection can be
+ * switched on and off at run time through its Enabled attribute.
+ */
+public class RbacMetrics implements RbacMetricsMBean {
+    public static final String OBJECT_NAME = "rbac:type=Metrics";
+
+    private static final RbacMetrics INSTANCE = new RbacMetrics();
+
+    static volatile boolean enabled = Boolean.getBoolean("rbac.metrics");
+
+    private final LongAdder[] checks;
+    private final LatencyHistogram checkLatency;
+    private final LatencyHistogram queryLatency;
+    private final LatencyHistogram propagationFanOut;
+    private final Map<String, LoadPhase> loads;
+
+    private RbacMetrics () {
+        this.checks = new LongAdder[AccessDecision.values().length];
+        for (int i = 0; i < checks.length; i++) {
+            checks[i] = new LongAdder();
+        }
+        this.checkLatency = new LatencyHistogram();
+        this.queryLatency = new LatencyHistogram();
+        this.propagationFanOut = new LatencyHistogram();
+        this.loads = new ConcurrentHashMap<>();
+    }
+
+    public static RbacMetrics getInstance () {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server under {@link
+     * #OBJECT_NAME}, unless already registered.
+     *
+     * @throws JMException If registering fails.
+     */
+    public void register () throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(this, name);
+        }
+    }
+
+    /**
+     * Records a single check.
+     *
+     * @param decision The decision.
+     * @param nanos    How long deciding took.
+     */
+    void recordCheck (AccessDecision decision, long nanos) {
+        checks[decision.ordinal()].increment();
+        checkLatency.record(nanos);
+    }
+
+    /**
+     * Records an interactive query.
+     *
+     * @param nanos How long answering took, printing included.
+     */
+    void recordQuery (long nanos) {
+        queryLatency.record(nanos);
+    }
+
+    /**
+     * Records the propagation of one grant.
+     *
+     * @param roles The number of roles the grant was applied to.
+     */
+    void recordPropagation (int roles) {
+        propagationFanOut.record(roles);
+    }
+
+    /**
+     * Records a read of a policy file, or of one range of it.
+     *
+     * @param file  The file's name.
+     * @param lines The lines read.
+     * @param nanos How long reading and handling the lines took.
+     */
+    void recordLoad (String file, long lines, long nanos) {
+        LoadPhase phase = loads.computeIfAbsent(file, k -> new LoadPhase());
+        phase.reads.increment();
+        phase.lines.add(lines);
+        phase.nanos.add(nanos);
+    }
+
+    @Override
+    public boolean isEnabled () {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled (boolean enabled) {
+        RbacMetrics.enabled = enabled;
+    }
+
+    @Override
+    public long getGrantedChecks () {
+        return checks[AccessDecision.GRANTED.ordinal()].sum();
+    }
+
+    @Override
+    public long getDeniedChecks () {
+        return checks[AccessDecision.DENIED.ordinal()].sum();
+    }
+
+    @Override
+    public long getUnknownUserChecks () {
+        return checks[AccessDecision.UNKNOWN_USER.ordinal()].sum();
+    }
+
+    @Override
+    public long getUnknownObjectChecks () {
+        return checks[AccessDecision.UNKNOWN_OBJECT.ordinal()].sum();
+    }
+
+    @Override
+    public double getCheckLatencyMean () {
+        return checkLatency.getMean();
+    }
+
+    @Override
+    public long getCheckLatencyP50 () {
+        return checkLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getCheckLatencyP99 () {
+        return checkLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getCheckLatencyP999 () {
+        return checkLatency.getPercentile(99.9);
+    }
+
+    @Override
+    public long getCheckLatencyMax () {
+        return checkLatency.getMax();
+    }
+
+    @Override
+    public long getQueryCount () {
+        return queryLatency.getCount();
+    }
+
+    @Override
+    public long getQueryLatencyP50 () {
+        return queryLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getQueryLatencyP99 () {
+        return queryLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getQueryLatencyMax () {
+        return queryLatency.getMax();
+    }
+
+    @Override
+    public long getPropagationCount () {
+        return propagationFanOut.getCount();
+    }
+
+    @Override
+    public double getPropagationFanOutMean () {
+        return propagationFanOut.getMean();
+    }
+
+    @Override
+    public long getPropagationFanOutMax () {
+        return propagationFanOut.getMax();
+    }
+
+    @Override
+    public String getLoadSummary () {
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, LoadPhase> entry :
+            new TreeMap<>(loads).entrySet()) {
+            LoadPhase phase = entry.getValue();
+            summary.append(String.format("%s: %d lines in %.1f ms over %d " +
+                    "reads%n", entry.getKey(), phase.lines.sum(),
+                phase.nanos.sum() / 1e6, phase.reads.sum()));
+        }
+        return summary.toString();
+    }
+
+    @Override
+    public String dump () {
+        return String.format("checks: granted=%d denied=%d unknown_user=%d " +
+                "unknown_object=%d%ncheck latency ns: %s%nquery latency " +
+                "ns: %s%npropagation fan-out: %s%n%s", getGrantedChecks(),
+            getDeniedChecks(), getUnknownUserChecks(),
+            getUnknownObjectChecks(), checkLatency, queryLatency,
+            propagationFanOut, getLoadSummary());
+    }
+
+    /**
+     * Prints the text dump.
+     *
+     * @param out Where to print it.
+     */
+    public void dump (PrintStream out) {
+        out.print(dump());
+    }
+
+    @Override
+    public void reset () {
+        for (LongAdder count : checks) {
+            count.reset();
+        }
+        checkLatency.reset();
+        queryLatency.reset();
+        propagationFanOut.reset();
+        loads.clear();
+    }
+
+    private static class LoadPhase {
+        private final LongAdder reads = new LongAdder();
+        private final LongAdder lines = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * The management interface RbacMetrics is exported through over JMX.
+ * Latencies are in nanoseconds.
+ */
+public interface RbacMetricsMBean {
+    boolean isEnabled ();
+
+    void setEnabled (boolean enabled);
+
+    long getGrantedChecks ();
+
+    long getDeniedChecks ();
+
+    long getUnknownUserChecks ();
+
+    long getUnknownObjectChecks ();
+
+    double getCheckLatencyMean ();
+
+    long getCheckLatencyP50 ();
+
+    long getCheckLatencyP99 ();
+
+    long getCheckLatencyP999 ();
+
+    long getCheckLatencyMax ();
+
+    long getQueryCount ();
+
+    long getQueryLatencyP50 ();
+
+    long getQueryLatencyP99 ();
+
+    long getQueryLatencyMax ();
+
+    long getPropagationCount ();
+
+    double getPropagationFanOutMean ();
+
+    long getPropagationFanOutMax ();
+
+    String getLoadSummary ();
+
+    String dump ();
+
+    void reset ();
+}
@@ -1,4 +1,7 @@
 public class RbacObject extends RbacElement {
+    public static final RbacSymbolTable<RbacObject> SYMBOLS =
+        new RbacSymbolTable<>(RbacObject::new);
+
     public RbacObject (String name) {
         super(name);
     }
@@ -6,4 +9,24 @@ public class RbacObject extends RbacElement {
     public RbacObject (RbacElement other) {
         super(other);
     }
+
+    /**
+     * Gives the canonical, interned object for a raw token.
+     *
+     * @param name The raw token, e.g. "F1".
+     * @return The canonical object.
+     */
+    public static RbacObject valueOf (String name) {
+        return SYMBOLS.intern(name);
+    }
+
+    /**
+     * Gives the canonical, interned object equal to another element.
+     *
+     * @param other The element to convert.
+     * @return The canonical object.
+     */
+    public static RbacObject valueOf (RbacElement other) {
+        return SYMBOLS.intern(other.toString());
+    }
 }
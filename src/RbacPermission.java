@@ -1,4 +1,7 @@
 public class RbacPermission extends RbacElement {
+    public static final RbacSymbolTable<RbacPermission> SYMBOLS =
+        new RbacSymbolTable<>(RbacPermission::new);
+
     public RbacPermission (String name) {
         super(name);
     }
@@ -6,4 +9,60 @@ public class RbacPermission extends RbacElement {
     public RbacPermission (RbacElement other) {
         super(other);
     }
+
+    /**
+     * Checks if this permission is a wildcard, such as {@code write*}, that
+     * grants every permission starting with its prefix. Tokens are
+     * canonicalized as their letters followed by their number, so a
+     * wildcard's prefix can't contain digits.
+     *
+     * @return true if this permission ends with a star.
+     */
+    public boolean isWildcard () {
+        String text = toString();
+        return !text.isEmpty() && text.charAt(text.length() - 1) == '*';
+    }
+
+    /**
+     * Checks if this permission came from a token with both digits and a
+     * star, such as {@code v2write*}. Canonicalizing moves the digits after
+     * the star, giving {@code vwrite*2}, which is no wildcard at all, so
+     * the loaders warn about such tokens.
+     *
+     * @return true if the star isn't where a wildcard needs it.
+     */
+    public boolean hasMisplacedStar () {
+        return number >= 0 && name.indexOf('*') >= 0;
+    }
+
+    /**
+     * Gives the prefix a wildcard permission grants, e.g. "write" for
+     * {@code write*}.
+     *
+     * @return The prefix, or the whole text if this isn't a wildcard.
+     */
+    public String getPrefix () {
+        String text = toString();
+        return isWildcard() ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * Gives the canonical, interned permission for a raw token.
+     *
+     * @param name The raw token, e.g. "read".
+     * @return The canonical permission.
+     */
+    public static RbacPermission valueOf (String name) {
+        return SYMBOLS.intern(name);
+    }
+
+    /**
+     * Gives the canonical, interned permission equal to another element.
+     *
+     * @param other The element to convert.
+     * @return The canonical permission.
+     */
+    public static RbacPermission valueOf (RbacElement other) {
+        return SYMBOLS.intern(other.toString());
+    }
 }
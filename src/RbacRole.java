@@ -1,4 +1,7 @@
 public class RbacRole extends RbacElement {
+    public static final RbacSymbolTable<RbacRole> SYMBOLS =
+        new RbacSymbolTable<>(RbacRole::new);
+
     public RbacRole (String name) {
         super(name);
     }
@@ -6,4 +9,24 @@ public class RbacRole extends RbacElement {
     public RbacRole (RbacElement other) {
         super(other);
     }
+
+    /**
+     * Gives the canonical, interned role for a raw token.
+     *
+     * @param name The raw token, e.g. "R1".
+     * @return The canonical role.
+     */
+    public static RbacRole valueOf (String name) {
+        return SYMBOLS.intern(name);
+    }
+
+    /**
+     * Gives the canonical, interned role equal to another element.
+     *
+     * @param other The element to convert.
+     * @return The canonical role.
+     */
+    public static RbacRole valueOf (RbacElement other) {
+        return SYMBOLS.intern(other.toString());
+    }
 }
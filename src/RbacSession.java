@@ -0,0 +1,100 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A user's session, as in the NIST RBAC model. Access through a session is
+ * decided by the roles activated in it only, not by every role assigned to
+ * the user. Active roles are kept as a bit set over role ids, so a session
+ * costs a few dozen bytes. A session is meant to be used by one thread at a
+ * time.
+ */
+public class RbacSession {
+    private final long id;
+    private final RbacUser user;
+    private long[] activeRoles;
+
+    RbacSession (long id, RbacUser user) {
+        this.id = id;
+        this.user = user;
+        this.activeRoles = new long[1];
+    }
+
+    public long getId () {
+        return id;
+    }
+
+    public RbacUser getUser () {
+        return user;
+    }
+
+    /**
+     * Checks if a role is active in this session.
+     *
+     * @param role The role to check.
+     * @return true if the role is active.
+     */
+    public boolean isActive (RbacRole role) {
+        return CompiledRoleObjectMatrix.testBit(activeRoles,
+            CompiledRoleObjectMatrix.idOf(role));
+    }
+
+    /**
+     * Gives the roles active in this session. Builds a new set, so it is
+     * meant for display, not for checks.
+     *
+     * @return The active roles.
+     */
+    public Set<RbacRole> getActiveRoles () {
+        Set<RbacRole> roles = new HashSet<>();
+        for (int id = nextActiveRole(0); id >= 0; id = nextActiveRole(id + 1)) {
+            roles.add(RbacRole.SYMBOLS.get(id));
+        }
+        return roles;
+    }
+
+    /**
+     * Gives the bit set of active role ids. Must not be modified.
+     *
+     * @return The active role bits.
+     */
+    long[] getActiveRoleBits () {
+        return activeRoles;
+    }
+
+    /**
+     * Gives the lowest active role id at or above a given id.
+     *
+     * @param from The id to start from.
+     * @return The role id, or -1 if there are no more active roles.
+     */
+    int nextActiveRole (int from) {
+        int word = from >>> 6;
+        if (word >= activeRoles.length) {
+            return -1;
+        }
+        long bits = activeRoles[word] & (-1L << from);
+        while (true) {
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == activeRoles.length) {
+                return -1;
+            }
+            bits = activeRoles[word];
+        }
+    }
+
+    void activate (int roleId) {
+        if ((roleId >>> 6) >= activeRoles.length) {
+            activeRoles = Arrays.copyOf(activeRoles, (roleId >>> 6) + 1);
+        }
+        CompiledRoleObjectMatrix.setBit(activeRoles, roleId);
+    }
+
+    void deactivate (int roleId) {
+        if ((roleId >>> 6) < activeRoles.length) {
+            activeRoles[roleId >>> 6] &= ~(1L << roleId);
+        }
+    }
+}
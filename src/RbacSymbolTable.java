@@ -0,0 +1,144 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Interns RBAC elements of one type. Every distinct element is parsed once
+ * and gets a canonical instance with a dense id, starting at 0, so that maps
+ * and arrays can be keyed on elements without rebuilding their strings.
+ *
+ * @param <T> The type of element held by this table.
+ */
+public class RbacSymbolTable<T extends RbacElement> {
+    private final Function<String, T> factory;
+    private final Map<String, T> byText;
+    private final Map<T, T> canonical;
+    private volatile Object[] elements;
+    private volatile int size;
+
+    /**
+     * Constructs a new empty symbol table.
+     *
+     * @param factory Parses a raw token into a new, not yet interned, element.
+     */
+    public RbacSymbolTable (Function<String, T> factory) {
+        this.factory = factory;
+        this.byText = new ConcurrentHashMap<>();
+        this.canonical = new ConcurrentHashMap<>();
+        this.elements = new Object[64];
+        this.size = 0;
+    }
+
+    /**
+     * Gives the canonical element for a raw token, interning it if needed.
+     *
+     * @param raw The raw token, e.g. "R12".
+     * @return The canonical element.
+     */
+    public T intern (String raw) {
+        T element = byText.get(raw);
+        if (element != null) {
+            return element;
+        }
+        element = intern(factory.apply(raw));
+        byText.putIfAbsent(raw, element);
+        return element;
+    }
+
+    /**
+     * Gives the canonical instance equal to an element, interning the
+     * element itself if no equal element was interned before.
+     *
+     * @param element The element to intern.
+     * @return The canonical element.
+     */
+    public T intern (T element) {
+        if (element.id >= 0 && get(element.id) == element) {
+            return element;
+        }
+        T existing = canonical.get(element);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (this) {
+            existing = canonical.get(element);
+            if (existing != null) {
+                return existing;
+            }
+            int id = size;
+            Object[] current = elements;
+            if (id == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+                elements = current;
+            }
+            element.id = id;
+            current[id] = element;
+            canonical.put(element, element);
+            byText.putIfAbsent(element.toString(), element);
+            size = id + 1;
+            return element;
+        }
+    }
+
+    /**
+     * Gives the canonical instance equal to an element without interning it.
+     *
+     * @param element The element to look up.
+     * @return The canonical element, or {@code null} if never interned.
+     */
+    public T lookup (T element) {
+        if (element.id >= 0 && get(element.id) == element) {
+            return element;
+        }
+        return canonical.get(element);
+    }
+
+    /**
+     * Gives the canonical element for a raw token without interning it, so
+     * untrusted input cannot grow the table.
+     *
+     * @param raw The raw token.
+     * @return The canonical element, or {@code null} if never interned.
+     */
+    public T lookup (String raw) {
+        T element = byText.get(raw);
+        return element != null ? element : canonical.get(factory.apply(raw));
+    }
+
+    /**
+     * Gives the id of the canonical instance equal to an element without
+     * interning it.
+     *
+     * @param element The element to look up.
+     * @return The id, or -1 if never interned.
+     */
+    public int idOf (T element) {
+        T found = lookup(element);
+        return found == null ? -1 : found.id;
+    }
+
+    /**
+     * Gives the element with a given id.
+     *
+     * @param id The id handed out by this table.
+     * @return The element, or {@code null} if no such id.
+     */
+    @SuppressWarnings("unchecked")
+    public T get (int id) {
+        if (id < 0 || id >= size) {
+            return null;
+        }
+        return (T)elements[id];
+    }
+
+    /**
+     * Gives the number of interned elements, which is also one more than the
+     * highest id handed out.
+     *
+     * @return The number of interned elements.
+     */
+    public int size () {
+        return size;
+    }
+}
@@ -1,4 +1,7 @@
 public class RbacUser extends RbacElement {
+    public static final RbacSymbolTable<RbacUser> SYMBOLS =
+        new RbacSymbolTable<>(RbacUser::new);
+
     public RbacUser (String name) {
         super(name);
     }
@@ -6,4 +9,24 @@ public class RbacUser extends RbacElement {
     public RbacUser (RbacElement other) {
         super(other);
     }
+
+    /**
+     * Gives the canonical, interned user for a raw token.
+     *
+     * @param name The raw token, e.g. "U1".
+     * @return The canonical user.
+     */
+    public static RbacUser valueOf (String name) {
+        return SYMBOLS.intern(name);
+    }
+
+    /**
+     * Gives the canonical, interned user equal to another element.
+     *
+     * @param other The element to convert.
+     * @return The canonical user.
+     */
+    public static RbacUser valueOf (RbacElement other) {
+        return SYMBOLS.intern(other.toString());
+    }
 }
@@ -1,7 +1,5 @@
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -10,6 +8,18 @@ import java.util.stream.Collectors;
  * in the hierarchy. A role lends its permissions to its descendant. A role
  * can only have one descendant, but many ascendants. That makes this graph a
  * tree, or possibly a forrest, directed from leaves to root(s).
+ * <p>
+ * Every tree is labeled with a pre-order walk from its root through the
+ * ascendants, so that a role's ascendants occupy one contiguous interval of
+ * the walk. Seniority checks compare two labels and listing ascendants reads
+ * the interval. Changes only mark the trees they touch, which are relabeled
+ * on the next query. A hierarchy may be queried by many threads once it is no
+ * longer changed, as with the copies held by a PolicySnapshot.
+ * <p>
+ * A general hierarchy lifts the one descendant limit, so the roles may form
+ * any partial order. Instead of labels it keeps, for every role, a bit set
+ * over role ids of all the roles inheriting from it, kept closed under
+ * transitivity as edges are added and removed.
  */
 public class RoleHierarchy {
     private static final RbacComparator RBAC_COMPARATOR = new RbacComparator();
@@ -17,65 +27,103 @@ public class RoleHierarchy {
     private Set<RbacRole> roles;
     private Map<RbacRole, Set<RbacRole>> ascendants;
     private Map<RbacRole, RbacRole> descendants;
+    private final boolean general;
+    private Map<RbacRole, Set<RbacRole>> generalDescendants;
+    private BitSet[] inheritors;
+
+    private Set<RbacRole> unlabeled;
+    private int[] treeOf;
+    private int[] preOrder;
+    private int[] preOrderEnd;
+    private int[][] treeWalks;
 
     /**
      * Initializes a new hierarchy with no relationships yet.
      */
     public RoleHierarchy () {
+        this(false);
+    }
+
+    /**
+     * Initializes a new hierarchy with no relationships yet.
+     *
+     * @param general true to allow a role many descendants, making this a
+     *                general hierarchy rather than a forest.
+     */
+    public RoleHierarchy (boolean general) {
+        this.general = general;
+        this.generalDescendants = new HashMap<>();
+        this.inheritors = new BitSet[0];
         this.roles = new HashSet<>();
         this.ascendants = new HashMap<>();
         this.descendants = new HashMap<>();
+        this.unlabeled = new HashSet<>();
+        this.treeOf = new int[0];
+        this.preOrder = new int[0];
+        this.preOrderEnd = new int[0];
+        this.treeWalks = new int[0][];
     }
 
     public static RoleHierarchy getRoleHierarchyFromFile (String filename) {
+        return getRoleHierarchyFromFile(filename, false);
+    }
+
+    /**
+     * Loads a role hierarchy, asking the user to fix an invalid file in the
+     * interactive mode.
+     *
+     * @param filename The role hierarchy file.
+     * @param general  Whether to build a general hierarchy.
+     * @return The hierarchy, or {@code null} if the file is invalid and
+     * can't be fixed interactively.
+     */
+    public static RoleHierarchy getRoleHierarchyFromFile (String filename,
+        boolean general) {
         RoleHierarchy roleHierarchy;
         do {
-            roleHierarchy = readRolesFromFile(filename);
-            if (roleHierarchy == null) {
-                System.out.println("Edit the file and press <enter> to " +
-                    "continue.");
-                try {
-                    System.in.read();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        } while (roleHierarchy == null);
+            roleHierarchy = readRolesFromFile(filename, general);
+        } while (roleHierarchy == null && PolicyFileReader.awaitFix());
+        if (roleHierarchy == null) {
+            return null;
+        }
 
         System.out.println("\nRole Hierarchy:");
         roleHierarchy.printAscendantRelationships();
         return roleHierarchy;
     }
 
-    private static RoleHierarchy readRolesFromFile (String filename) {
-        RoleHierarchy rh = new RoleHierarchy();
-        File file = new File(filename);
-        Scanner input = null;
+    private static RoleHierarchy readRolesFromFile (String filename,
+        boolean general) {
+        RoleHierarchy rh = new RoleHierarchy(general);
+        PolicyFileReader reader = new PolicyFileReader(filename);
+        PolicyTokenCache<RbacRole> roles =
+            new PolicyTokenCache<>(RbacRole.SYMBOLS);
+        long[] invalidLine = {-1};
         try {
-            input = new Scanner(new FileInputStream(file));
-        } catch (FileNotFoundException e) {
+            reader.read(line -> {
+                if (line.size() < 2 || !rh.addRelationship(
+                    line.getElement(0, roles), line.getElement(1, roles))) {
+                    invalidLine[0] = line.getLineNumber();
+                    return false;
+                }
+                return true;
+            });
+        } catch (NoSuchFileException e) {
             System.err.printf("The role hierarchy file, %s, does not exist.%n",
                 filename);
             return null;
+        } catch (IOException e) {
+            System.err.printf("The role hierarchy file, %s, could not be " +
+                "read: %s%n", filename, e.getMessage());
+            return null;
         }
 
-        int line = 1;
-        while (input.hasNextLine()) {
-            String[] roles = input.nextLine().split("\\s+");
-            if (roles.length > 0) {
-                boolean added = rh.addRelationship(new RbacRole(roles[0]),
-                    new RbacRole(roles[1]));
-                if (!added) {
-                    System.out.printf("Invalid line found in %s on line " +
-                        "%d%n", filename, line);
-                    input.close();
-                    return null;
-                }
-            }
-            line++;
+        if (invalidLine[0] >= 0) {
+            System.out.printf("Invalid line found in %s on line %d%n",
+                filename, invalidLine[0]);
+            return null;
         }
-
-        input.close();
+        System.err.println(reader.getSummary());
 
         return rh;
     }
@@ -88,12 +136,22 @@ public class RoleHierarchy {
      * @param descendant The descendant role. Inherits permissions from
      *                   ascendant.
      * @return True if relationship is added. False if ascendant already has
-     * a descendant.
+     * a descendant, or if ascendant already inherits from descendant. In a
+     * general hierarchy, false only if the relationship exists or would
+     * close a cycle.
      */
     public boolean addRelationship (RbacRole ascendant, RbacRole descendant) {
-        if (descendants.get(ascendant) != null) {
+        if (general) {
+            return addGeneralRelationship(RbacRole.SYMBOLS.intern(ascendant),
+                RbacRole.SYMBOLS.intern(descendant));
+        }
+        if (descendants.get(ascendant) != null ||
+            hasDescendant(descendant, ascendant)) {
             return false;
         }
+        ascendant = RbacRole.SYMBOLS.intern(ascendant);
+        descendant = RbacRole.SYMBOLS.intern(descendant);
+        unlabeled.add(descendant);
 
         descendants.put(ascendant, descendant);
         ascendants.computeIfAbsent(descendant, k -> new HashSet<>());
@@ -105,6 +163,32 @@ public class RoleHierarchy {
         return true;
     }
 
+    /**
+     * Removes a relationship from the hierarchy. Both roles stay in the
+     * hierarchy.
+     *
+     * @param ascendant  The ascendant role.
+     * @param descendant The descendant role.
+     * @return True if the relationship was removed. False if descendant
+     * wasn't the descendant of ascendant.
+     */
+    public boolean removeRelationship (RbacRole ascendant,
+        RbacRole descendant) {
+        if (general) {
+            return removeGeneralRelationship(ascendant, descendant);
+        }
+        if (!descendant.equals(descendants.get(ascendant))) {
+            return false;
+        }
+
+        descendants.remove(ascendant);
+        ascendants.get(descendant).remove(ascendant);
+        unlabeled.add(ascendant);
+        unlabeled.add(descendant);
+
+        return true;
+    }
+
     /**
      * Gives a set of all roles in this hierarchy.
      *
@@ -115,15 +199,129 @@ public class RoleHierarchy {
     }
 
     /**
-     * Gives the descendant of a given role, if any.
+     * Gives the descendant of a given role, if any. A role in a general
+     * hierarchy may have several; use getDescendants there.
      *
      * @param role The ascendant role.
      * @return The descendant role, or {@code null} if no descendant.
      */
     public RbacRole getDescendant (RbacRole role) {
+        if (general) {
+            Set<RbacRole> direct = generalDescendants.get(role);
+            return direct == null || direct.isEmpty() ? null :
+                direct.iterator().next();
+        }
         return descendants.get(role);
     }
 
+    /**
+     * Gives the direct descendants of a given role.
+     *
+     * @param role The ascendant role.
+     * @return The descendant roles, which must not be modified.
+     */
+    public Set<RbacRole> getDescendants (RbacRole role) {
+        if (general) {
+            Set<RbacRole> direct = generalDescendants.get(role);
+            return direct == null ? Collections.emptySet() :
+                Collections.unmodifiableSet(direct);
+        }
+        RbacRole descendant = descendants.get(role);
+        return descendant == null ? Collections.emptySet() :
+            Collections.singleton(descendant);
+    }
+
+    /**
+     * Checks if this is a general hierarchy, where a role may have many
+     * descendants.
+     *
+     * @return true if this is a general hierarchy.
+     */
+    public boolean isGeneral () {
+        return general;
+    }
+
+    /**
+     * Checks if a role inherits the permissions of another, that is if the
+     * other role is the role itself or one of its ascendants, however far up.
+     * Costs two label comparisons.
+     *
+     * @param role  The junior role.
+     * @param other The possibly senior role.
+     * @return true if role inherits from other.
+     */
+    public boolean inheritsFrom (RbacRole role, RbacRole other) {
+        if (role.equals(other)) {
+            return true;
+        }
+        if (general) {
+            BitSet closure = getInheritors(other);
+            int roleId = CompiledRoleObjectMatrix.idOf(role);
+            return closure != null && roleId >= 0 && closure.get(roleId);
+        }
+        ensureLabels();
+        int roleId = labeledId(role);
+        int otherId = labeledId(other);
+        return roleId >= 0 && otherId >= 0 &&
+            treeOf[roleId] == treeOf[otherId] &&
+            preOrder[roleId] < preOrder[otherId] &&
+            preOrder[otherId] < preOrderEnd[roleId];
+    }
+
+    /**
+     * Gives every role a role inherits from, directly or not, in the
+     * hierarchy's walk order. Costs time proportional to the number of roles
+     * given.
+     *
+     * @param role The junior role.
+     * @return The role's ascendants, closest first within each branch.
+     */
+    public List<RbacRole> getAllAscendants (RbacRole role) {
+        if (general) {
+            return getGeneralAscendants(role);
+        }
+        ensureLabels();
+        int roleId = labeledId(role);
+        if (roleId < 0) {
+            return Collections.emptyList();
+        }
+        int[] walk = treeWalks[treeOf[roleId]];
+        List<RbacRole> result =
+            new ArrayList<>(preOrderEnd[roleId] - preOrder[roleId] - 1);
+        for (int i = preOrder[roleId] + 1; i < preOrderEnd[roleId]; i++) {
+            result.add(RbacRole.SYMBOLS.get(walk[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Gives every role that inherits from a role, directly or not. Costs
+     * time proportional to the number of roles given.
+     *
+     * @param role The senior role.
+     * @return The role's descendants, closest first.
+     */
+    public List<RbacRole> getAllDescendants (RbacRole role) {
+        if (general) {
+            BitSet closure = getInheritors(role);
+            if (closure == null) {
+                return Collections.emptyList();
+            }
+            List<RbacRole> result = new ArrayList<>(closure.cardinality());
+            for (int id = closure.nextSetBit(0); id >= 0;
+                 id = closure.nextSetBit(id + 1)) {
+                result.add(RbacRole.SYMBOLS.get(id));
+            }
+            return result;
+        }
+        List<RbacRole> result = new ArrayList<>();
+        for (RbacRole descendant = descendants.get(role); descendant != null;
+             descendant = descendants.get(descendant)) {
+            result.add(descendant);
+        }
+        return result;
+    }
+
     /**
      * Prints roles' ascendants from the top of the hierarchy. If role has no
      * ascendants it will only appears as another's ascendant.
@@ -132,9 +330,13 @@ public class RoleHierarchy {
         List<RbacRole> current = new ArrayList<>(getRootRoles());
         current.sort(RBAC_COMPARATOR);
         List<RbacRole> next = new ArrayList<>();
+        Set<RbacRole> printed = new HashSet<>();
 
         while (current.size() > 0) {
             for (RbacRole role : current) {
+                if (!printed.add(role)) {
+                    continue;
+                }
                 Set<RbacRole> ascendantsSet = this.ascendants.get(role);
                 if (ascendantsSet == null) {
                     continue;
@@ -165,16 +367,288 @@ public class RoleHierarchy {
      * @return A copy of this RoleHierarchy.
      */
     public RoleHierarchy getCopy () {
-        RoleHierarchy copy = new RoleHierarchy();
+        RoleHierarchy copy = new RoleHierarchy(general);
         for (RbacRole role : this.roles) {
-            RbacRole descendant = descendants.get(role);
-            if (descendant != null) {
+            for (RbacRole descendant : getDescendants(role)) {
                 copy.addRelationship(role, descendant);
             }
         }
+        copy.ensureLabels();
         return copy;
     }
 
+    /**
+     * Adds an edge to a general hierarchy. Every role that lends to ascendant
+     * now also lends to descendant and its inheritors. The walk up stops at
+     * roles already lending to descendant, since their closure, and that of
+     * every role above them, already holds descendant's.
+     *
+     * @param ascendant  The ascendant role.
+     * @param descendant The descendant role.
+     * @return true if the edge was added.
+     */
+    private boolean addGeneralRelationship (RbacRole ascendant,
+        RbacRole descendant) {
+        if (ascendant == descendant ||
+            getDescendants(ascendant).contains(descendant) ||
+            inheritsFrom(ascendant, descendant)) {
+            return false;
+        }
+        generalDescendants.computeIfAbsent(ascendant, k -> new HashSet<>())
+            .add(descendant);
+        ascendants.computeIfAbsent(descendant, k -> new HashSet<>())
+            .add(ascendant);
+        roles.add(ascendant);
+        roles.add(descendant);
+
+        BitSet added = (BitSet)closureOf(descendant).clone();
+        added.set(descendant.id);
+        Deque<RbacRole> pending = new ArrayDeque<>();
+        pending.push(ascendant);
+        while (!pending.isEmpty()) {
+            RbacRole role = pending.pop();
+            BitSet closure = closureOf(role);
+            if (closure.get(descendant.id)) {
+                continue;
+            }
+            closure.or(added);
+            Set<RbacRole> lenders = ascendants.get(role);
+            if (lenders != null) {
+                pending.addAll(lenders);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes an edge from a general hierarchy. Only ascendant and the roles
+     * lending to it can lose inheritors; their closures are recomputed from
+     * their direct descendants, each after all of its descendants among
+     * them.
+     *
+     * @param ascendant  The ascendant role.
+     * @param descendant The descendant role.
+     * @return true if the edge was removed.
+     */
+    private boolean removeGeneralRelationship (RbacRole ascendant,
+        RbacRole descendant) {
+        Set<RbacRole> direct = generalDescendants.get(ascendant);
+        if (direct == null || !direct.remove(descendant)) {
+            return false;
+        }
+        ascendants.get(descendant).remove(ascendant);
+
+        List<RbacRole> affected = getGeneralAscendants(ascendant);
+        affected.add(RbacRole.SYMBOLS.intern(ascendant));
+        Map<RbacRole, Integer> waiting = new HashMap<>();
+        for (RbacRole role : affected) {
+            waiting.put(role, 0);
+        }
+        for (RbacRole role : affected) {
+            Set<RbacRole> lenders = ascendants.get(role);
+            if (lenders != null) {
+                for (RbacRole lender : lenders) {
+                    waiting.merge(lender, 1, Integer::sum);
+                }
+            }
+        }
+
+        Deque<RbacRole> ready = new ArrayDeque<>();
+        for (RbacRole role : affected) {
+            if (waiting.get(role) == 0) {
+                ready.push(role);
+            }
+        }
+        while (!ready.isEmpty()) {
+            RbacRole role = ready.pop();
+            BitSet closure = new BitSet();
+            for (RbacRole next : getDescendants(role)) {
+                closure.set(next.id);
+                closure.or(closureOf(next));
+            }
+            closureOf(role);
+            inheritors[role.id] = closure;
+            Set<RbacRole> lenders = ascendants.get(role);
+            if (lenders != null) {
+                for (RbacRole lender : lenders) {
+                    if (waiting.merge(lender, -1, Integer::sum) == 0) {
+                        ready.push(lender);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives every role lending to a role in a general hierarchy, each once.
+     *
+     * @param role The junior role.
+     * @return The role's ascendants, closest first.
+     */
+    private List<RbacRole> getGeneralAscendants (RbacRole role) {
+        List<RbacRole> result = new ArrayList<>();
+        BitSet seen = new BitSet();
+        Set<RbacRole> first = ascendants.get(role);
+        if (first != null) {
+            result.addAll(first);
+        }
+        for (RbacRole lender : result) {
+            seen.set(lender.id);
+        }
+        for (int i = 0; i < result.size(); i++) {
+            Set<RbacRole> lenders = ascendants.get(result.get(i));
+            if (lenders == null) {
+                continue;
+            }
+            for (RbacRole lender : lenders) {
+                if (!seen.get(lender.id)) {
+                    seen.set(lender.id);
+                    result.add(lender);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gives the inheritors of a role in a general hierarchy without creating
+     * them.
+     *
+     * @param role The senior role.
+     * @return The bit set of inheritor ids, or {@code null} if none.
+     */
+    private BitSet getInheritors (RbacRole role) {
+        int id = CompiledRoleObjectMatrix.idOf(role);
+        return id >= 0 && id < inheritors.length ? inheritors[id] : null;
+    }
+
+    /**
+     * Gives the inheritors of an interned role in a general hierarchy,
+     * creating an empty set if needed.
+     *
+     * @param role The senior role.
+     * @return The bit set of inheritor ids.
+     */
+    private BitSet closureOf (RbacRole role) {
+        if (role.id >= inheritors.length) {
+            inheritors = Arrays.copyOf(inheritors,
+                Math.max(role.id + 1, RbacRole.SYMBOLS.size()));
+        }
+        if (inheritors[role.id] == null) {
+            inheritors[role.id] = new BitSet();
+        }
+        return inheritors[role.id];
+    }
+
+    /**
+     * Checks if a role is another or one of its descendants, using the labels
+     * if they are current and walking the descendants otherwise, so a series
+     * of changes doesn't relabel on every step.
+     *
+     * @param role  The senior role.
+     * @param other The possibly junior role.
+     * @return true if other inherits from role.
+     */
+    private boolean hasDescendant (RbacRole role, RbacRole other) {
+        if (unlabeled.isEmpty()) {
+            return inheritsFrom(other, role);
+        }
+        for (RbacRole next = role; next != null;
+             next = descendants.get(next)) {
+            if (next.equals(other)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives the id of a role if it has a label.
+     *
+     * @param role The role.
+     * @return The role's id, or -1 if the role isn't in this hierarchy.
+     */
+    private int labeledId (RbacRole role) {
+        int id = role.id >= 0 ? role.id : RbacRole.SYMBOLS.idOf(role);
+        return id >= 0 && id < treeOf.length && treeOf[id] >= 0 ? id : -1;
+    }
+
+    /**
+     * Relabels every tree containing a role touched since the last query.
+     * Trees nothing touched keep their labels.
+     */
+    private synchronized void ensureLabels () {
+        if (unlabeled.isEmpty()) {
+            return;
+        }
+        int roleCount = RbacRole.SYMBOLS.size();
+        if (treeOf.length < roleCount) {
+            int oldLength = treeOf.length;
+            treeOf = Arrays.copyOf(treeOf, roleCount);
+            Arrays.fill(treeOf, oldLength, roleCount, -1);
+            preOrder = Arrays.copyOf(preOrder, roleCount);
+            preOrderEnd = Arrays.copyOf(preOrderEnd, roleCount);
+            treeWalks = Arrays.copyOf(treeWalks, roleCount);
+        }
+
+        Set<RbacRole> roots = new HashSet<>();
+        for (RbacRole role : unlabeled) {
+            RbacRole root = role;
+            for (RbacRole next = descendants.get(root); next != null;
+                 next = descendants.get(next)) {
+                root = next;
+            }
+            roots.add(root);
+            if (root != role) {
+                treeWalks[role.id] = null;
+            }
+        }
+        for (RbacRole root : roots) {
+            labelTree(root);
+        }
+        unlabeled.clear();
+    }
+
+    /**
+     * Labels one tree with a pre-order walk from its root through the
+     * ascendants. A role's interval ends where the walk leaves its subtree.
+     *
+     * @param root The tree's root.
+     */
+    private void labelTree (RbacRole root) {
+        List<RbacRole> walk = new ArrayList<>();
+        Deque<RbacRole> pending = new ArrayDeque<>();
+        Deque<RbacRole> open = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            RbacRole role = pending.pop();
+            while (!open.isEmpty() &&
+                descendants.get(role) != open.peek()) {
+                preOrderEnd[open.pop().id] = walk.size();
+            }
+            treeOf[role.id] = root.id;
+            preOrder[role.id] = walk.size();
+            walk.add(role);
+            open.push(role);
+            Set<RbacRole> roleAscendants = ascendants.get(role);
+            if (roleAscendants != null) {
+                for (RbacRole ascendant : roleAscendants) {
+                    pending.push(ascendant);
+                }
+            }
+        }
+        while (!open.isEmpty()) {
+            preOrderEnd[open.pop().id] = walk.size();
+        }
+
+        int[] ids = new int[walk.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = walk.get(i).id;
+        }
+        treeWalks[root.id] = ids;
+    }
+
     /**
      * Gives the root of every tree in the forest represented by this
      * hierarchy. Used to help print hierarchy in row order (all roots on
@@ -184,7 +658,7 @@ public class RoleHierarchy {
      */
     private Set<RbacRole> getRootRoles () {
         return this.roles.stream()
-            .filter(role -> this.descendants.get(role) == null)
+            .filter(role -> getDescendants(role).isEmpty())
             .collect(Collectors.toSet());
     }
 }
@@ -2,6 +2,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
 
 /**
@@ -14,8 +15,12 @@ public class RoleObjectMatrix {
 
     private Map<RbacRole, Map<RbacObject, Map<RbacPermission, Set<RbacRole>>>>
         matrix;
+    private Map<RbacObject, Map<RbacPermission, Set<RbacRole>>> rolesByGrant;
+    private Map<RbacRole, Map<RbacObject, PermissionTrie>> wildcards;
+    private Map<RbacObject, PermissionTrie> wildcardsByObject;
     private Set<RbacObject> objects;
     private RoleHierarchy roleHierarchy;
+    private List<PolicyChangeListener> listeners;
 
     /**
      * Constructs a new Role-Object Matrix from copies of a RoleHierarchy and
@@ -26,35 +31,36 @@ public class RoleObjectMatrix {
      */
     public RoleObjectMatrix (RoleHierarchy roleHierarchy,
         Set<RbacObject> objects) {
-        this.objects = new HashSet<>(objects);
+        this.objects = new HashSet<>();
+        for (RbacObject object : objects) {
+            this.objects.add(RbacObject.SYMBOLS.intern(object));
+        }
         this.roleHierarchy = roleHierarchy.getCopy();
+        this.listeners = new ArrayList<>();
+        this.rolesByGrant = new HashMap<>();
+        this.wildcards = new HashMap<>();
+        this.wildcardsByObject = new HashMap<>();
 
         matrix = new HashMap<>();
         for (RbacRole role : this.roleHierarchy.getAllRoles()) {
-            Map<RbacObject, Map<RbacPermission, Set<RbacRole>>> domain = new
-                HashMap<>();
-            for (RbacObject object : this.objects) {
-                domain.put(object, new HashMap<>());
-            }
-            matrix.put(role, domain);
+            addRoleRow(role);
         }
     }
 
+    /**
+     * Loads the resource objects, asking the user to fix an invalid file in
+     * the interactive mode.
+     *
+     * @param filename The resource objects file.
+     * @return The objects, or {@code null} if the file is invalid and can't
+     * be fixed interactively.
+     */
     static Set<RbacObject> getResourceObjectsFromFile (
         String filename) {
         Set<RbacObject> objects;
         do {
             objects = readObjectsFromFile(filename);
-            if (objects == null) {
-                System.out.println("Edit the file and press <enter> to " +
-                    "continue.");
-                try {
-                    System.in.read();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        } while (objects == null);
+        } while (objects == null && PolicyFileReader.awaitFix());
         return objects;
     }
 
@@ -72,7 +78,7 @@ public class RoleObjectMatrix {
 
         String[] rawObjects = input.nextLine().split("\\s+");
         for (String rawObject : rawObjects) {
-            RbacObject rbacObject = new RbacObject(rawObject);
+            RbacObject rbacObject = RbacObject.valueOf(rawObject);
             if (objects.contains(rbacObject)) {
                 System.out.printf("Duplicate object found: %s", rawObject);
                 return null;
@@ -84,35 +90,53 @@ public class RoleObjectMatrix {
     }
 
     public void applyPermissionsFromFile (String filename) {
-        File permissionsFile = new File(filename);
-        Scanner input = null;
+        PolicyFileReader reader = new PolicyFileReader(filename);
+        PolicyTokenCache<RbacRole> roles =
+            new PolicyTokenCache<>(RbacRole.SYMBOLS);
+        PolicyTokenCache<RbacObject> objects =
+            new PolicyTokenCache<>(RbacObject.SYMBOLS);
+        PolicyTokenCache<RbacPermission> permissions =
+            new PolicyTokenCache<>(RbacPermission.SYMBOLS);
         try {
-            input = new Scanner(new FileInputStream(permissionsFile));
-        } catch (FileNotFoundException e) {
+            reader.read(row -> {
+                if (row.size() < 3) {
+                    System.out.printf("Invalid line found in %s on line " +
+                        "%d%n", filename, row.getLineNumber());
+                    return true;
+                }
+                RbacPermission permission = row.getElement(1, permissions);
+                if (permission.hasMisplacedStar()) {
+                    System.err.printf("Permission %s in %s on line %d mixes " +
+                        "digits with a star, so it is not a wildcard.%n",
+                        permission, filename, row.getLineNumber());
+                }
+                this.addPermission(row.getElement(0, roles),
+                    row.getElement(2, objects), permission);
+                return true;
+            });
+        } catch (NoSuchFileException e) {
             System.err.printf("Permissions file %s not found.", filename);
             System.exit(1);
+        } catch (IOException e) {
+            System.err.printf("Permissions file %s could not be read: %s",
+                filename, e.getMessage());
+            System.exit(1);
         }
-
-        while (input.hasNextLine()) {
-            String[] row = input.nextLine().split("\\s+");
-            this.addPermission(new RbacRole(row[0]),
-                new RbacObject(row[2]), new RbacPermission(row[1]));
-        }
+        System.err.println(reader.getSummary());
     }
 
     public void applyRoleHierarchyPermissions () {
         for (RbacRole role : this.getRoles()) {
-            RbacObject roleAsObject = new RbacObject(role);
-            RbacPermission permission = new RbacPermission("control");
+            RbacObject roleAsObject = RbacObject.valueOf(role);
+            RbacPermission permission = RbacPermission.valueOf("control");
             this.addObject(roleAsObject);
             this.addPermission(role, roleAsObject, permission);
         }
         for (RbacRole role : this.getRoles()) {
-            RbacRole descendant =
-                this.getRoleHierarchy().getDescendant(role);
-            RbacObject roleAsObject = new RbacObject(role);
-            RbacPermission permission = new RbacPermission("own");
-            if (descendant != null) {
+            RbacObject roleAsObject = RbacObject.valueOf(role);
+            RbacPermission permission = RbacPermission.valueOf("own");
+            for (RbacRole descendant :
+                this.getRoleHierarchy().getDescendants(role)) {
                 this.addPermission(descendant, roleAsObject, permission);
             }
         }
@@ -128,9 +152,173 @@ public class RoleObjectMatrix {
      * exist, true if permission successfully added.
      */
     public boolean addPermission (RbacRole role, RbacObject object,
+        RbacPermission permission) {
+        if (!roleExists(role) || !objectExists(object)) {
+            return false;
+        }
+        role = RbacRole.SYMBOLS.intern(role);
+        return propagatePermission(role, RbacObject.SYMBOLS.intern(object),
+            RbacPermission.SYMBOLS.intern(permission), role);
+    }
+
+    /**
+     * Revokes a permission on an object that was given to a role, from the
+     * role and its descendants. Inherited copies only disappear once no
+     * other originating role still provides them.
+     *
+     * @param role       The base role the permission was given to.
+     * @param object     The object on which the permission was given.
+     * @param permission The permission to revoke.
+     * @return true if the permission was revoked, false if the role never
+     * was given it or the role or object didn't exist.
+     */
+    public boolean revokePermission (RbacRole role, RbacObject object,
         RbacPermission permission) {
         return (roleExists(role) && objectExists(object)) &&
-            propagatePermission(role, object, permission, role);
+            unpropagatePermission(role, object, permission, role);
+    }
+
+    /**
+     * Adds a relationship to the underlying hierarchy, adding either role as
+     * needed, and propagates everything ascendant holds to descendant and
+     * every role inheriting from it.
+     *
+     * @param ascendant  The ascendant role. Lends its permissions to
+     *                   descendant.
+     * @param descendant The descendant role. Inherits permissions from
+     *                   ascendant.
+     * @return true if the relationship was added, false if the hierarchy
+     * refused it.
+     */
+    public boolean addRelationship (RbacRole ascendant, RbacRole descendant) {
+        if (!roleHierarchy.addRelationship(ascendant, descendant)) {
+            return false;
+        }
+        addRoleRow(RbacRole.SYMBOLS.intern(ascendant));
+        addRoleRow(RbacRole.SYMBOLS.intern(descendant));
+
+        for (PolicyChangeListener listener : listeners) {
+            listener.hierarchyChanged();
+        }
+        for (Grant grant : getGrants(ascendant)) {
+            propagatePermission(descendant, grant.object, grant.permission,
+                grant.source);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a relationship from the underlying hierarchy. Every permission
+     * descendant and its inheritors got through ascendant is withdrawn,
+     * unless the originating role still reaches them along another path of
+     * a general hierarchy.
+     *
+     * @param ascendant  The ascendant role.
+     * @param descendant The descendant role.
+     * @return true if the relationship was removed, false if the roles
+     * weren't related.
+     */
+    public boolean removeRelationship (RbacRole ascendant,
+        RbacRole descendant) {
+        if (!roleHierarchy.getDescendants(ascendant).contains(descendant)) {
+            return false;
+        }
+
+        List<RbacRole> affected = roleHierarchy.getAllDescendants(descendant);
+        affected.add(RbacRole.SYMBOLS.intern(descendant));
+        roleHierarchy.removeRelationship(ascendant, descendant);
+        for (PolicyChangeListener listener : listeners) {
+            listener.hierarchyChanged();
+        }
+        for (Grant grant : getGrants(ascendant)) {
+            for (RbacRole role : affected) {
+                if (!roleHierarchy.inheritsFrom(role, grant.source)) {
+                    removeSource(role, grant.object, grant.permission,
+                        grant.source);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives the permissions a role holds on an object, each with its set of
+     * originating roles. Meant for serializing the matrix; the result must
+     * not be modified.
+     *
+     * @param role   The role.
+     * @param object The object.
+     * @return The permissions and their originating roles.
+     */
+    Map<RbacPermission, Set<RbacRole>> getCell (RbacRole role,
+        RbacObject object) {
+        return matrix.get(role).get(object);
+    }
+
+    /**
+     * Puts an already propagated permission straight into the matrix, as
+     * read back from a serialized matrix. Nothing is propagated.
+     *
+     * @param role       The role holding the permission.
+     * @param object     The object the permission is on.
+     * @param permission The permission.
+     * @param sources    The originating roles.
+     */
+    void restoreCell (RbacRole role, RbacObject object,
+        RbacPermission permission, Set<RbacRole> sources) {
+        matrix.get(role).get(object).put(permission, sources);
+        indexGrant(role, object, permission);
+        for (PolicyChangeListener listener : listeners) {
+            listener.permissionsChanged(role, object);
+        }
+    }
+
+    /**
+     * Gives every role holding a permission on an object, directly or
+     * inherited through the hierarchy, from an index kept alongside the
+     * matrix.
+     *
+     * @param object     The object.
+     * @param permission The permission.
+     * @return The roles, which must not be modified.
+     */
+    public Set<RbacRole> getRolesWithPermission (RbacObject object,
+        RbacPermission permission) {
+        Map<RbacPermission, Set<RbacRole>> grants = rolesByGrant.get(object);
+        Set<RbacRole> roles = grants == null ? null : grants.get(permission);
+        PermissionTrie patterns = wildcardsByObject.get(object);
+        if (patterns != null && patterns.matches(permission.toString())) {
+            Set<RbacRole> holders = roles == null ? new HashSet<>() :
+                new HashSet<>(roles);
+            patterns.forEachMatch(permission.toString(),
+                pattern -> holders.addAll(grants.get(pattern)));
+            roles = holders;
+        }
+        return roles == null ? Collections.emptySet() :
+            Collections.unmodifiableSet(roles);
+    }
+
+    /**
+     * Gives the wildcard permissions a role holds on an object, directly or
+     * inherited. The result must not be modified.
+     *
+     * @param role   The role.
+     * @param object The object.
+     * @return The wildcard permissions, or {@code null} if there are none.
+     */
+    PermissionTrie getWildcards (RbacRole role, RbacObject object) {
+        Map<RbacObject, PermissionTrie> domain = wildcards.get(role);
+        return domain == null ? null : domain.get(object);
+    }
+
+    /**
+     * Freezes the current state of this matrix into a read-only decision
+     * table. This matrix stays the authoring model and can keep changing.
+     *
+     * @return The compiled form of this matrix.
+     */
+    public CompiledRoleObjectMatrix compile () {
+        return new CompiledRoleObjectMatrix(this);
     }
 
     /**
@@ -141,8 +329,14 @@ public class RoleObjectMatrix {
     public void printMatrix (int cols) {
         int numSubMatrix = (this.objects.size() / cols) + 1;
         int colWidth = TERM_WIDTH / (cols + 1);
+        List<RbacObject> sortedObjects = new ArrayList<>(this.objects);
+        sortedObjects.sort(RBAC_COMPARATOR);
+        List<RbacRole> sortedRoles =
+            new ArrayList<>(this.roleHierarchy.getAllRoles());
+        sortedRoles.sort(RBAC_COMPARATOR);
         for (int i = 0; i < numSubMatrix; i++) {
-            printSubMatrix(i * cols, ((i + 1) * cols), colWidth);
+            printSubMatrix(sortedObjects, sortedRoles, i * cols,
+                ((i + 1) * cols), colWidth);
             System.out.println();
         }
     }
@@ -154,15 +348,38 @@ public class RoleObjectMatrix {
      * @return true if the object was added, false if it was a duplicate.
      */
     public boolean addObject (RbacObject object) {
+        object = RbacObject.SYMBOLS.intern(object);
         if (!this.objects.add(object)) {
             return false;
         }
         for (RbacRole role : this.roleHierarchy.getAllRoles()) {
             matrix.get(role).put(object, new HashMap<>());
         }
+        for (PolicyChangeListener listener : listeners) {
+            listener.objectAdded(object);
+        }
         return true;
     }
 
+    /**
+     * Registers a listener to be told about every later change to this
+     * matrix.
+     *
+     * @param listener The listener to add.
+     */
+    public void addChangeListener (PolicyChangeListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Stops telling a listener about changes to this matrix.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeChangeListener (PolicyChangeListener listener) {
+        this.listeners.remove(listener);
+    }
+
     /**
      * Gives the set of roles for this system. Transparent accessor to
      * underlying RoleHierarchy.
@@ -203,8 +420,10 @@ public class RoleObjectMatrix {
     }
 
     /**
-     * Propagates a permission on an object to a role and its descendants,
-     * maintaining the set of contributing originating roles.
+     * Propagates a permission on an object to a role and every role
+     * inheriting from it, maintaining the set of contributing originating
+     * roles. Each inheritor is visited once, however many paths of a general
+     * hierarchy lead to it.
      *
      * @param role       The base role to give the permission.
      * @param object     The object on which the permission is given.
@@ -214,6 +433,30 @@ public class RoleObjectMatrix {
      * previously added.
      */
     private boolean propagatePermission (RbacRole role, RbacObject object,
+        RbacPermission permission, RbacRole source) {
+        boolean added = addSource(role, object, permission, source);
+        List<RbacRole> descendants = roleHierarchy.getAllDescendants(role);
+        for (RbacRole descendant : descendants) {
+            addSource(descendant, object, permission, source);
+        }
+        if (RbacMetrics.enabled) {
+            RbacMetrics.getInstance().recordPropagation(
+                descendants.size() + 1);
+        }
+        return added;
+    }
+
+    /**
+     * Adds an originating role to a permission on an object held by one
+     * role.
+     *
+     * @param role       The role holding the permission.
+     * @param object     The object on which the permission is held.
+     * @param permission The permission.
+     * @param source     The originating role.
+     * @return true if the source was added.
+     */
+    private boolean addSource (RbacRole role, RbacObject object,
         RbacPermission permission, RbacRole source) {
         boolean added;
         Set<RbacRole> currentSources =
@@ -222,33 +465,193 @@ public class RoleObjectMatrix {
             Set<RbacRole> sources = new HashSet<>();
             sources.add(source);
             matrix.get(role).get(object).put(permission, sources);
+            indexGrant(role, object, permission);
             added = true;
         } else {
             added = currentSources.add(source);
         }
-
-        RbacRole descendant = roleHierarchy.getDescendant(role);
-        if (descendant != null) {
-            propagatePermission(descendant, object, permission, source);
+        if (added) {
+            for (PolicyChangeListener listener : listeners) {
+                listener.permissionsChanged(role, object);
+            }
         }
         return added;
     }
 
+    /**
+     * Removes an originating role from a permission on an object held by a
+     * role and every role inheriting from it. The permission is cleared from
+     * a role once no originating roles remain. Does nothing if the role
+     * itself doesn't hold the source, since its inheritors can't hold it
+     * through it either.
+     *
+     * @param role       The role to start from.
+     * @param object     The object on which the permission is held.
+     * @param permission The permission to remove the source from.
+     * @param source     The originating role to remove.
+     * @return true if the source was removed, false if role didn't hold it.
+     */
+    private boolean unpropagatePermission (RbacRole role, RbacObject object,
+        RbacPermission permission, RbacRole source) {
+        if (!removeSource(role, object, permission, source)) {
+            return false;
+        }
+        for (RbacRole descendant : roleHierarchy.getAllDescendants(role)) {
+            removeSource(descendant, object, permission, source);
+        }
+        return true;
+    }
+
+    /**
+     * Removes an originating role from a permission on an object held by one
+     * role, clearing the permission once no originating roles remain.
+     *
+     * @param role       The role holding the permission.
+     * @param object     The object on which the permission is held.
+     * @param permission The permission.
+     * @param source     The originating role to remove.
+     * @return true if the source was removed, false if role didn't hold it.
+     */
+    private boolean removeSource (RbacRole role, RbacObject object,
+        RbacPermission permission, RbacRole source) {
+        Map<RbacPermission, Set<RbacRole>> permissions =
+            matrix.get(role).get(object);
+        Set<RbacRole> currentSources = permissions.get(permission);
+        if (currentSources == null || !currentSources.remove(source)) {
+            return false;
+        }
+        if (currentSources.isEmpty()) {
+            permissions.remove(permission);
+            Set<RbacRole> holders =
+                rolesByGrant.get(object).get(permission);
+            holders.remove(role);
+            if (holders.isEmpty()) {
+                rolesByGrant.get(object).remove(permission);
+            }
+            if (permission.isWildcard()) {
+                unindexWildcard(role, object, permission, holders.isEmpty());
+            }
+        }
+        for (PolicyChangeListener listener : listeners) {
+            listener.permissionsChanged(role, object);
+        }
+        return true;
+    }
+
+    /**
+     * Records in the reverse index that a role now holds a permission on an
+     * object.
+     *
+     * @param role       The role.
+     * @param object     The object.
+     * @param permission The permission.
+     */
+    private void indexGrant (RbacRole role, RbacObject object,
+        RbacPermission permission) {
+        rolesByGrant.computeIfAbsent(object, k -> new HashMap<>())
+            .computeIfAbsent(permission, k -> new HashSet<>()).add(role);
+        if (permission.isWildcard()) {
+            wildcards.computeIfAbsent(role, k -> new HashMap<>())
+                .computeIfAbsent(object, k -> new PermissionTrie())
+                .add(permission);
+            wildcardsByObject.computeIfAbsent(object,
+                k -> new PermissionTrie()).add(permission);
+        }
+    }
+
+    /**
+     * Drops a wildcard permission a role no longer holds on an object from
+     * the wildcard indexes.
+     *
+     * @param role       The role.
+     * @param object     The object.
+     * @param permission The wildcard permission.
+     * @param lastHolder Whether no other role holds it on the object.
+     */
+    private void unindexWildcard (RbacRole role, RbacObject object,
+        RbacPermission permission, boolean lastHolder) {
+        Map<RbacObject, PermissionTrie> domain = wildcards.get(role);
+        PermissionTrie patterns = domain.get(object);
+        patterns.remove(permission);
+        if (patterns.isEmpty()) {
+            domain.remove(object);
+            if (domain.isEmpty()) {
+                wildcards.remove(role);
+            }
+        }
+        if (lastHolder) {
+            patterns = wildcardsByObject.get(object);
+            patterns.remove(permission);
+            if (patterns.isEmpty()) {
+                wildcardsByObject.remove(object);
+            }
+        }
+    }
+
+    /**
+     * Gives every (object, permission, originating role) held by a role, as
+     * a copy so the caller may change the matrix while walking it.
+     *
+     * @param role The role whose grants to give.
+     * @return The grants.
+     */
+    private List<Grant> getGrants (RbacRole role) {
+        List<Grant> grants = new ArrayList<>();
+        for (Map.Entry<RbacObject, Map<RbacPermission, Set<RbacRole>>> cell :
+            matrix.get(role).entrySet()) {
+            for (Map.Entry<RbacPermission, Set<RbacRole>> entry :
+                cell.getValue().entrySet()) {
+                for (RbacRole source : entry.getValue()) {
+                    grants.add(new Grant(cell.getKey(), entry.getKey(),
+                        source));
+                }
+            }
+        }
+        return grants;
+    }
+
+    /**
+     * Adds an empty row for a role if it doesn't have one yet.
+     *
+     * @param role The role.
+     */
+    private void addRoleRow (RbacRole role) {
+        if (matrix.containsKey(role)) {
+            return;
+        }
+        Map<RbacObject, Map<RbacPermission, Set<RbacRole>>> domain =
+            new HashMap<>();
+        for (RbacObject object : this.objects) {
+            domain.put(object, new HashMap<>());
+        }
+        matrix.put(role, domain);
+    }
+
+    private static class Grant {
+        private final RbacObject object;
+        private final RbacPermission permission;
+        private final RbacRole source;
+
+        private Grant (RbacObject object, RbacPermission permission,
+            RbacRole source) {
+            this.object = object;
+            this.permission = permission;
+            this.source = source;
+        }
+    }
+
     /**
      * Prints a sub-matrix from column startCol inclusive to column endCol
      * exclusive.
      *
-     * @param startCol The first column in the sub-matrix, inclusive.
-     * @param endCol   The last column in the sub-matrix, exclusive.
-     * @param colWidth The minimum width to print a column.
+     * @param sortedObjects Every object, sorted once by the caller.
+     * @param sortedRoles   Every role, sorted once by the caller.
+     * @param startCol      The first column in the sub-matrix, inclusive.
+     * @param endCol        The last column in the sub-matrix, exclusive.
+     * @param colWidth      The minimum width to print a column.
      */
-    private void printSubMatrix (int startCol, int endCol, int colWidth) {
-        List<RbacObject> sortedObjects = new ArrayList<>(this.objects);
-        sortedObjects.sort(RBAC_COMPARATOR);
-        List<RbacRole> sortedRoles =
-            new ArrayList<>(this.roleHierarchy.getAllRoles());
-        sortedRoles.sort(RBAC_COMPARATOR);
-
+    private void printSubMatrix (List<RbacObject> sortedObjects,
+        List<RbacRole> sortedRoles, int startCol, int endCol, int colWidth) {
         endCol = Math.min(endCol, objects.size());
         System.out.printf("%" + colWidth + "s ", "\\");
         for (int i = startCol; i < endCol; i++) {
@@ -291,8 +694,50 @@ public class RoleObjectMatrix {
         return objects;
     }
 
+    /**
+     * Gives a role's row of the matrix, one cell per object. Meant for
+     * walking the matrix in bulk; the result must not be modified.
+     *
+     * @param role The role.
+     * @return The row, or {@code null} if the role doesn't exist.
+     */
+    Map<RbacObject, Map<RbacPermission, Set<RbacRole>>> getRow (
+        RbacRole role) {
+        return matrix.get(role);
+    }
+
     public Set<RbacPermission> getObjectPermissionsForRole (RbacRole role,
         RbacObject object) {
         return matrix.get(role).get(object).keySet();
     }
+
+    /**
+     * Checks if a role holds a permission on an object, directly or
+     * inherited, without building any intermediate sets. A wildcard
+     * permission such as {@code write*} held on the object grants every
+     * permission starting with its prefix.
+     *
+     * @param role       The role to check.
+     * @param object     The object to check.
+     * @param permission The permission to check.
+     * @return true if the permission is held, false otherwise or if the role
+     * or object doesn't exist.
+     */
+    public boolean hasPermission (RbacRole role, RbacObject object,
+        RbacPermission permission) {
+        Map<RbacObject, Map<RbacPermission, Set<RbacRole>>> domain =
+            matrix.get(role);
+        if (domain == null) {
+            return false;
+        }
+        Map<RbacPermission, Set<RbacRole>> permissions = domain.get(object);
+        if (permissions == null) {
+            return false;
+        }
+        if (permissions.containsKey(permission)) {
+            return true;
+        }
+        PermissionTrie patterns = getWildcards(role, object);
+        return patterns != null && patterns.matches(permission.toString());
+    }
 }
@@ -0,0 +1,159 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates user sessions and enforces dynamic separation of duty (DSD) on
+ * the roles activated in them. DSD constraints have the same shape as SSD
+ * constraints, a set of roles and a cardinality N, but limit the roles
+ * active together in one session rather than the roles assigned to a user.
+ * Checks run against the latest snapshot published by a PolicyStore, so any
+ * number of threads can check their own sessions concurrently.
+ */
+public class SessionManager {
+    private final PolicyStore store;
+    private final SsdConstraintSet dsdConstraints;
+    private final ConcurrentHashMap<Long, RbacSession> sessions;
+    private final AtomicLong nextId;
+
+    /**
+     * Constructs a new session manager.
+     *
+     * @param store          The store holding the policy.
+     * @param dsdConstraints The DSD constraints to enforce on activation.
+     */
+    public SessionManager (PolicyStore store, SsdConstraintSet dsdConstraints) {
+        this.store = store;
+        this.dsdConstraints = dsdConstraints;
+        this.sessions = new ConcurrentHashMap<>();
+        this.nextId = new AtomicLong();
+    }
+
+    /**
+     * Creates a new session for a user with no roles active yet.
+     *
+     * @param user The user.
+     * @return The new session, or {@code null} if the user is unknown.
+     */
+    public RbacSession createSession (RbacUser user) {
+        RbacUser canonicalUser = RbacUser.SYMBOLS.lookup(user);
+        if (canonicalUser == null ||
+            store.current().getRoleIds(canonicalUser) == null) {
+            return null;
+        }
+        RbacSession session = new RbacSession(nextId.incrementAndGet(),
+            canonicalUser);
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    /**
+     * Gives a session by its id.
+     *
+     * @param id The session's id.
+     * @return The session, or {@code null} if no such session.
+     */
+    public RbacSession getSession (long id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * Ends a session.
+     *
+     * @param session The session to end.
+     * @return true if the session existed.
+     */
+    public boolean deleteSession (RbacSession session) {
+        return sessions.remove(session.getId()) != null;
+    }
+
+    /**
+     * Gives the number of open sessions.
+     *
+     * @return The number of sessions.
+     */
+    public int getSessionCount () {
+        return sessions.size();
+    }
+
+    /**
+     * Activates a role in a session. The role must be assigned to the
+     * session's user, and activating it must not break any DSD constraint.
+     * Only the constraints mentioning the role are evaluated.
+     *
+     * @param session The session.
+     * @param role    The role to activate.
+     * @return true if the role is now active, false if it isn't assigned to
+     * the user or would break a DSD constraint.
+     */
+    public boolean activateRole (RbacSession session, RbacRole role) {
+        int roleId = CompiledRoleObjectMatrix.idOf(role);
+        if (roleId < 0 ||
+            !store.current().isAssigned(session.getUser(), roleId)) {
+            return false;
+        }
+        if (session.isActive(role)) {
+            return true;
+        }
+
+        long[] active = session.getActiveRoleBits();
+        for (int index : dsdConstraints.getConstraintIndices(role)) {
+            SsdConstraint constraint = dsdConstraints.getConstraint(index);
+            if (constraint.countMatches(active) + 1 >= constraint.getN()) {
+                return false;
+            }
+        }
+        session.activate(roleId);
+        return true;
+    }
+
+    /**
+     * Drops a role from a session.
+     *
+     * @param session The session.
+     * @param role    The role to drop.
+     * @return true if the role was active.
+     */
+    public boolean dropRole (RbacSession session, RbacRole role) {
+        if (!session.isActive(role)) {
+            return false;
+        }
+        session.deactivate(CompiledRoleObjectMatrix.idOf(role));
+        return true;
+    }
+
+    /**
+     * Decides an access check using only the roles active in a session.
+     * Roles that were deassigned from the user since activation no longer
+     * count. Allocates nothing.
+     *
+     * @param session    The session.
+     * @param object     The object to access.
+     * @param permission The permission needed on the object.
+     * @return The decision.
+     */
+    public AccessDecision check (RbacSession session, RbacObject object,
+        RbacPermission permission) {
+        PolicySnapshot snapshot = store.current();
+        if (snapshot.getRoleIds(session.getUser()) == null) {
+            return AccessDecision.UNKNOWN_USER;
+        }
+        CompiledRoleObjectMatrix permissions = snapshot.getPermissions();
+        int objectId = CompiledRoleObjectMatrix.idOf(object);
+        if (!permissions.hasObject(objectId)) {
+            return AccessDecision.UNKNOWN_OBJECT;
+        }
+
+        int permissionId = CompiledRoleObjectMatrix.idOf(permission);
+        for (int roleId = session.nextActiveRole(0); roleId >= 0;
+             roleId = session.nextActiveRole(roleId + 1)) {
+            boolean held = permissionId >= 0 ?
+                permissions.hasPermission(roleId, objectId, permissionId) :
+                permissions.matchesWildcard(roleId, objectId,
+                    permission.toString());
+            if (held && snapshot.isAssigned(session.getUser(), roleId)) {
+                return AccessDecision.GRANTED;
+            }
+        }
+        return AccessDecision.DENIED;
+    }
+}
@@ -1,9 +1,13 @@
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 public class SsdConstraint {
     private final int n;
     private final Set<RbacRole> roleSet;
+    private final int[] maskWords;
+    private final long[] maskBits;
 
     /**
      * Constructs a new constraint on a set of roles with a cardinality of N.
@@ -21,6 +25,41 @@ public class SsdConstraint {
         }
         this.n = n;
         this.roleSet = roleSet;
+
+        TreeMap<Integer, Long> words = new TreeMap<>();
+        for (RbacRole role : roleSet) {
+            int id = RbacRole.SYMBOLS.intern(role).getId();
+            words.merge(id >>> 6, 1L << id, (a, b) -> a | b);
+        }
+        this.maskWords = new int[words.size()];
+        this.maskBits = new long[words.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Long> word : words.entrySet()) {
+            maskWords[i] = word.getKey();
+            maskBits[i++] = word.getValue();
+        }
+    }
+
+    /**
+     * Builds a bit set over role ids, as taken by {@link
+     * #countMatches(long[])}.
+     *
+     * @param roles The roles to set.
+     * @return The bits, one per role id.
+     */
+    public static long[] toRoleBits (Collection<RbacRole> roles) {
+        int maxId = -1;
+        for (RbacRole role : roles) {
+            maxId = Math.max(maxId, CompiledRoleObjectMatrix.idOf(role));
+        }
+        long[] bits = new long[maxId < 0 ? 0 : (maxId >>> 6) + 1];
+        for (RbacRole role : roles) {
+            int id = CompiledRoleObjectMatrix.idOf(role);
+            if (id >= 0) {
+                bits[id >>> 6] |= 1L << id;
+            }
+        }
+        return bits;
     }
 
     /**
@@ -31,10 +70,24 @@ public class SsdConstraint {
      * @return true if this constraint is satisfied by the passed roles.
      */
     public boolean test (Set<RbacRole> testRoles) {
-        Set<RbacRole> intersection = new HashSet<>(roleSet);
-        intersection.retainAll(testRoles);
+        return countMatches(toRoleBits(testRoles)) < n;
+    }
 
-        return intersection.size() < n;
+    /**
+     * Counts how many roles of this constraint are set in a bit set over
+     * role ids, by popcount over the words this constraint's roles occupy.
+     *
+     * @param roleBits The bits, one per role id.
+     * @return The number of matching roles.
+     */
+    public int countMatches (long[] roleBits) {
+        int count = 0;
+        for (int i = 0; i < maskWords.length; i++) {
+            if (maskWords[i] < roleBits.length) {
+                count += Long.bitCount(maskBits[i] & roleBits[maskWords[i]]);
+            }
+        }
+        return count;
     }
 
     public int getN () {
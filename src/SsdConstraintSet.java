@@ -1,64 +1,75 @@
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class SsdConstraintSet {
     private static final RbacComparator RBAC_COMPARATOR = new RbacComparator();
+    private static final int[] NO_CONSTRAINTS = new int[0];
     private Set<SsdConstraint> constraints;
+    private List<SsdConstraint> constraintList;
+    private int[][] constraintsByRole;
 
     /**
      * Constructs a new empty set of constraints.
      */
     public SsdConstraintSet () {
         this.constraints = new LinkedHashSet<>();
+        this.constraintList = new ArrayList<>();
+        this.constraintsByRole = new int[0][];
     }
 
+    /**
+     * Loads SSD constraints, asking the user to fix an invalid file in the
+     * interactive mode.
+     *
+     * @param filename The constraints file.
+     * @return The constraints, or {@code null} if the file is invalid and
+     * can't be fixed interactively.
+     */
     public static SsdConstraintSet getConstraintSetFromFile (String filename) {
         SsdConstraintSet constraints;
         do {
             constraints = readConstraintsFromFile(filename);
-            if (constraints == null) {
-                System.out.println("Edit the file and press <enter> to " +
-                    "continue.");
-                try {
-                    System.in.read();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        } while (constraints == null);
+        } while (constraints == null && PolicyFileReader.awaitFix());
         return constraints;
     }
 
     private static SsdConstraintSet readConstraintsFromFile (String filename) {
         SsdConstraintSet constraintSet = new SsdConstraintSet();
-        File file = new File(filename);
-        Scanner input = null;
+        PolicyFileReader reader = new PolicyFileReader(filename);
+        PolicyTokenCache<RbacRole> roleTokens =
+            new PolicyTokenCache<>(RbacRole.SYMBOLS);
+        long[] invalidLine = {-1};
         try {
-            input = new Scanner(new FileInputStream(file));
-        } catch (FileNotFoundException e) {
+            reader.read(line -> {
+                int n = line.getInt(0);
+                if (n < 2 || line.size() < 2) {
+                    invalidLine[0] = line.getLineNumber();
+                    return false;
+                }
+                Set<RbacRole> roles = new HashSet<>();
+                for (int i = 1; i < line.size(); i++) {
+                    roles.add(line.getElement(i, roleTokens));
+                }
+                constraintSet.addConstraint(n, roles);
+                return true;
+            });
+        } catch (NoSuchFileException e) {
             System.err.printf("The resource objects file, %s, does not exist.",
                 filename);
             return null;
+        } catch (IOException e) {
+            System.err.printf("The constraints file, %s, could not be read: " +
+                "%s", filename, e.getMessage());
+            return null;
         }
 
-        int lineNum = 1;
-        while (input.hasNextLine()) {
-            int n = input.nextInt();
-            String[] line = input.nextLine().trim().split("\\s+");
-            Set<RbacRole> roles = Arrays.stream(line).map(RbacRole::new)
-                .collect(Collectors.toSet());
-            if (n < 2) {
-                System.out.printf("Invalid line found in %s: line %d",
-                    filename, lineNum);
-                return null;
-            }
-            constraintSet.addConstraint(n, roles);
-            lineNum++;
+        if (invalidLine[0] >= 0) {
+            System.out.printf("Invalid line found in %s: line %d", filename,
+                invalidLine[0]);
+            return null;
         }
+        System.err.println(reader.getSummary());
         return constraintSet;
     }
 
@@ -80,18 +91,88 @@ public class SsdConstraintSet {
      * @return True if the constraint was added.
      */
     public boolean addConstraint (SsdConstraint constraint) {
-        return constraints.add(constraint);
+        if (!constraints.add(constraint)) {
+            return false;
+        }
+
+        int index = constraintList.size();
+        constraintList.add(constraint);
+        for (RbacRole role : constraint.getRoleSet()) {
+            int id = RbacRole.SYMBOLS.intern(role).getId();
+            if (id >= constraintsByRole.length) {
+                constraintsByRole = Arrays.copyOf(constraintsByRole,
+                    Math.max(id + 1, constraintsByRole.length * 2));
+            }
+            int[] postings = constraintsByRole[id];
+            if (postings == null) {
+                postings = new int[] {index};
+            } else {
+                postings = Arrays.copyOf(postings, postings.length + 1);
+                postings[postings.length - 1] = index;
+            }
+            constraintsByRole[id] = postings;
+        }
+        return true;
+    }
+
+    /**
+     * Gives the indices of the constraints that mention a role, in the
+     * order the constraints were added.
+     *
+     * @param role The role.
+     * @return The constraint indices, or an empty array if none.
+     */
+    public int[] getConstraintIndices (RbacRole role) {
+        int id = CompiledRoleObjectMatrix.idOf(role);
+        if (id < 0 || id >= constraintsByRole.length ||
+            constraintsByRole[id] == null) {
+            return NO_CONSTRAINTS;
+        }
+        return constraintsByRole[id];
+    }
+
+    /**
+     * Gives a constraint by its index, in the order constraints were added.
+     *
+     * @param index The constraint index.
+     * @return The constraint.
+     */
+    public SsdConstraint getConstraint (int index) {
+        return constraintList.get(index);
+    }
+
+    /**
+     * Gives the number of constraints in this set.
+     *
+     * @return The number of constraints.
+     */
+    public int size () {
+        return constraintList.size();
     }
 
     /**
-     * Tests a set of roles against all constraints.
+     * Tests a set of roles against all constraints. Only the constraints
+     * that mention one of the roles are evaluated, each by popcount over
+     * its role bitmask.
      *
      * @param roles The set of roles to test.
      * @return True if set satisfies all constraints.
      */
     public boolean testAgainstAll (Set<RbacRole> roles) {
-        return constraints.stream().allMatch(constraint ->
-            constraint.test(roles));
+        if (roles.size() < 2) {
+            return true;
+        }
+
+        long[] roleBits = SsdConstraint.toRoleBits(roles);
+        for (RbacRole role : roles) {
+            for (int index : getConstraintIndices(role)) {
+                SsdConstraint constraint = constraintList.get(index);
+                if (constraint.countMatches(roleBits) >= constraint.getN()) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     public int indexOfFirstBrokenConstraint (Set<RbacRole> roles) {
@@ -107,6 +188,29 @@ public class SsdConstraintSet {
         return idx;
     }
 
+    /**
+     * Gives the constraints in this set, in the order they were added.
+     *
+     * @return The constraints.
+     */
+    public Set<SsdConstraint> getConstraints () {
+        return Collections.unmodifiableSet(constraints);
+    }
+
+    /**
+     * Gives a copy of this set of constraints.
+     *
+     * @return A copy of this set.
+     */
+    public SsdConstraintSet getCopy () {
+        SsdConstraintSet copy = new SsdConstraintSet();
+        for (SsdConstraint constraint : constraints) {
+            copy.addConstraint(constraint.getN(),
+                new HashSet<>(constraint.getRoleSet()));
+        }
+        return copy;
+    }
+
     public void printConstraints () {
         int i = 1;
         for (SsdConstraint constraint : constraints) {
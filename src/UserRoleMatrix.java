@@ -1,16 +1,22 @@
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class UserRoleMatrix {
     public static final RbacComparator RBAC_COMPARATOR = new RbacComparator();
+    private static final RbacRole[] NO_ROLES = new RbacRole[0];
+    private static final long MIN_CHUNK_BYTES = 1 << 20;
     private Map<RbacUser, Set<RbacRole>> matrix;
+    private Map<RbacUser, RbacRole[]> roleArrays;
     private Map<RbacRole, Set<RbacUser>> usersPerRole;
+    private Map<RbacUser, SsdCounts> ssdCounts;
     private Set<RbacRole> roles;
     private SsdConstraintSet constraints;
+    private List<PolicyChangeListener> listeners;
 
     /**
      * Constructs a new user-role matrix subject to a set of constraints.
@@ -21,42 +27,177 @@ public class UserRoleMatrix {
         this.constraints = constraints;
         this.roles = roles;
         this.matrix = new HashMap<>();
+        this.roleArrays = new HashMap<>();
         this.usersPerRole = new HashMap<>();
+        this.ssdCounts = new HashMap<>();
+        this.listeners = new ArrayList<>();
     }
 
-    void addUsersFromFile (String filename) {
+    /**
+     * Loads users from a file, asking the user to fix an invalid file in
+     * the interactive mode.
+     *
+     * @param filename The users file.
+     * @return false if the file is invalid and can't be fixed
+     * interactively, leaving no users.
+     */
+    boolean addUsersFromFile (String filename) {
+        PolicyFileReader reader = new PolicyFileReader(filename);
+        PolicyTokenCache<RbacUser> users =
+            new PolicyTokenCache<>(RbacUser.SYMBOLS);
+        PolicyTokenCache<RbacRole> roleTokens =
+            new PolicyTokenCache<>(RbacRole.SYMBOLS);
+        boolean error;
+        do {
+            error = false;
+            UserLineError[] firstError = new UserLineError[1];
+            try {
+                reader.read(row -> {
+                    RbacUser user = row.getElement(0, users);
+                    Set<RbacRole> roles = new HashSet<>();
+                    for (int i = 1; i < row.size(); i++) {
+                        roles.add(row.getElement(i, roleTokens));
+                    }
+                    if (!this.giveRolesToUser(user, roles)) {
+                        firstError[0] = new UserLineError(row.getLineNumber(),
+                            user, roles);
+                        return false;
+                    }
+                    return true;
+                });
+            } catch (NoSuchFileException e) {
+                System.err.printf("Users file %s not found.", filename);
+                System.exit(1);
+            } catch (IOException e) {
+                System.err.printf("Users file %s could not be read: %s",
+                    filename, e.getMessage());
+                System.exit(1);
+            }
+
+            if (firstError[0] != null) {
+                error = true;
+                clearUsers();
+                displayErrorMessage(filename, firstError[0].lineNum,
+                    firstError[0].user, firstError[0].roles);
+            }
+        } while (error && PolicyFileReader.awaitFix());
+        if (error) {
+            return false;
+        }
+        System.err.println(reader.getSummary());
+        return true;
+    }
+
+    /**
+     * Loads users like {@link #addUsersFromFile(String)}, but splits the
+     * file into byte ranges that are parsed and checked against the SSD
+     * constraints concurrently on the common fork-join pool. The results are
+     * then merged in file order, so the first invalid line reported is the
+     * same one a sequential load would report.
+     *
+     * @param filename The users file.
+     * @return false if the file is invalid and can't be fixed
+     * interactively, leaving no users.
+     */
+    boolean addUsersFromFileParallel (String filename) {
+        PolicyFileReader reader = new PolicyFileReader(filename);
         boolean error;
-        File usersFile = new File(filename);
-        Scanner input = null;
         do {
             error = false;
+            List<UserChunk> chunks;
             try {
-                input = new Scanner(new FileInputStream(usersFile));
-            } catch (FileNotFoundException e) {
+                long size = reader.size();
+                int chunkCount = (int)Math.max(1, Math.min(
+                    ForkJoinPool.getCommonPoolParallelism() * 4L,
+                    size / MIN_CHUNK_BYTES));
+                long chunkSize = size / chunkCount + 1;
+                chunks = IntStream.range(0, chunkCount).parallel()
+                    .mapToObj(i -> readUserChunk(reader, i * chunkSize,
+                        (i + 1) * chunkSize))
+                    .collect(Collectors.toList());
+            } catch (NoSuchFileException e) {
                 System.err.printf("Users file %s not found.", filename);
                 System.exit(1);
+                return false;
+            } catch (IOException | UncheckedIOException e) {
+                System.err.printf("Users file %s could not be read: %s",
+                    filename, e.getMessage());
+                System.exit(1);
+                return false;
+            }
+
+            UserLineError firstError = mergeUserChunks(chunks);
+            if (firstError != null) {
+                error = true;
+                clearUsers();
+                displayErrorMessage(filename, firstError.lineNum,
+                    firstError.user, firstError.roles);
             }
-            int lineNum = 1;
-
-            while (input.hasNextLine()) {
-                String[] row = input.nextLine().split("\\s+");
-                RbacUser user = new RbacUser(row[0]);
-                Set<RbacRole> roles =
-                    Arrays.stream(row).skip(1).map(RbacRole::new)
-                        .collect(Collectors.toSet());
-                boolean added = this.giveRolesToUser(user, roles);
-                if (!added) {
-                    error = true;
-                    clearUsers();
-                    displayErrorMessage(filename, lineNum, user, roles);
-                    break;
+        } while (error && PolicyFileReader.awaitFix());
+        if (error) {
+            return false;
+        }
+        System.err.println(reader.getSummary());
+        return true;
+    }
+
+    /**
+     * Parses one byte range of a users file and checks every user's roles
+     * against the SSD constraints. Safe to run on many threads at once.
+     *
+     * @param reader The reader for the users file.
+     * @param start  The start of the range, inclusive.
+     * @param end    The end of the range, exclusive.
+     * @return The parsed users of the range, in file order.
+     */
+    private UserChunk readUserChunk (PolicyFileReader reader, long start,
+        long end) {
+        PolicyTokenCache<RbacUser> users =
+            new PolicyTokenCache<>(RbacUser.SYMBOLS);
+        PolicyTokenCache<RbacRole> roleTokens =
+            new PolicyTokenCache<>(RbacRole.SYMBOLS);
+        UserChunk chunk = new UserChunk();
+        try {
+            chunk.lineCount = reader.read(start, end, row -> {
+                Set<RbacRole> roles = new HashSet<>();
+                for (int i = 1; i < row.size(); i++) {
+                    roles.add(row.getElement(i, roleTokens));
+                }
+                chunk.lines.add(new UserLine(row.getLineNumber(),
+                    row.getElement(0, users), roles,
+                    constraints.testAgainstAll(roles)));
+                return true;
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return chunk;
+    }
+
+    /**
+     * Adds the users of parsed chunks to the matrix in file order, stopping
+     * at the first line that breaks a constraint or repeats a user.
+     *
+     * @param chunks The parsed chunks, in file order.
+     * @return The first invalid line, or {@code null} if all were added.
+     */
+    private UserLineError mergeUserChunks (List<UserChunk> chunks) {
+        long lineOffset = 0;
+        for (UserChunk chunk : chunks) {
+            for (UserLine line : chunk.lines) {
+                Set<RbacRole> existing = matrix.get(line.user);
+                if (!line.valid || (existing != null && !existing.isEmpty())) {
+                    return new UserLineError(lineOffset + line.lineNum,
+                        line.user, line.roles);
                 }
-                lineNum++;
+                putUser(line.user, line.roles);
             }
-        } while (error);
+            lineOffset += chunk.lineCount;
+        }
+        return null;
     }
 
-    private void displayErrorMessage (String filename, int lineNum,
+    private void displayErrorMessage (String filename, long lineNum,
         RbacUser user, Set<RbacRole> roles) {
         String errorMsg;
         int constraintBroken =
@@ -68,38 +209,213 @@ public class UserRoleMatrix {
             errorMsg = "Duplicated user " + user;
         }
         System.out.printf("Invalid line found in %s on line " +
-            "%d due to %s. ", filename, lineNum, errorMsg);
-        System.out.println("Edit the file and press <enter> to " +
-            "continue.");
-        try {
-            System.in.read();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+            "%d due to %s.%n", filename, lineNum, errorMsg);
     }
 
     public boolean giveRolesToUser (RbacUser user, Set<RbacRole> roles) {
-        Set<RbacRole> testRoles = new HashSet<>(matrix.computeIfAbsent(user,
-            k -> new HashSet<>()));
-
-        if (testRoles.size() != 0) {
+        RbacUser canonicalUser = RbacUser.SYMBOLS.intern(user);
+        Set<RbacRole> currentRoles = matrix.get(canonicalUser);
+        if (currentRoles != null && !currentRoles.isEmpty()) {
             return false;
         }
 
-        testRoles.addAll(roles);
+        Set<RbacRole> testRoles = new HashSet<>();
+        roles.forEach(role -> testRoles.add(RbacRole.SYMBOLS.intern(role)));
         if (constraints.testAgainstAll(testRoles)) {
-            matrix.put(user, testRoles);
-            roles.forEach(role -> usersPerRole.computeIfAbsent(role, k -> new
-                HashSet<>()).add(user));
+            putUser(canonicalUser, testRoles);
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * Puts a user straight into the matrix, as read back from a serialized
+     * matrix whose assignments were validated when it was written. The SSD
+     * constraints are not checked again.
+     *
+     * @param user  The user.
+     * @param roles The user's roles.
+     */
+    void restoreUser (RbacUser user, Set<RbacRole> roles) {
+        putUser(RbacUser.SYMBOLS.intern(user), roles);
+    }
+
+    /**
+     * Records a user's already validated roles in the matrix and the
+     * reverse map, and tells the listeners.
+     *
+     * @param user  The canonical user.
+     * @param roles The user's canonical roles, owned by the matrix from now.
+     */
+    private void putUser (RbacUser user, Set<RbacRole> roles) {
+        matrix.put(user, roles);
+        ssdCounts.remove(user);
+        roleArrays.put(user, roles.toArray(NO_ROLES));
+        roles.forEach(role -> usersPerRole.computeIfAbsent(role, k ->
+            new HashSet<>()).add(user));
+        for (PolicyChangeListener listener : listeners) {
+            listener.userRolesChanged(user);
+        }
+    }
+
+    /**
+     * Assigns one more role to an existing user. Only the SSD constraints
+     * that mention the role are checked, each against the user's running
+     * count of roles in that constraint, so the cost doesn't grow with the
+     * number of roles the user already holds.
+     *
+     * @param user The user.
+     * @param role The role to assign.
+     * @return true if the role was assigned, false if the user doesn't
+     * exist, already holds the role, or holding it would break a constraint.
+     */
+    public boolean assignRole (RbacUser user, RbacRole role) {
+        Set<RbacRole> userRoles = matrix.get(user);
+        if (userRoles == null) {
+            return false;
+        }
+        role = RbacRole.SYMBOLS.intern(role);
+        if (userRoles.contains(role)) {
+            return false;
+        }
+        SsdCounts counts = getSsdCounts(user, userRoles);
+        int[] indices = constraints.getConstraintIndices(role);
+        for (int index : indices) {
+            if (counts.get(index) + 1 >= constraints.getConstraint(index)
+                .getN()) {
+                return false;
+            }
+        }
+        for (int index : indices) {
+            counts.add(index, 1);
+        }
+
+        userRoles.add(role);
+        usersPerRole.computeIfAbsent(role, k -> new HashSet<>()).add(user);
+        rolesChanged(user, userRoles);
+        return true;
+    }
+
+    /**
+     * Takes one role away from a user.
+     *
+     * @param user The user.
+     * @param role The role to take away.
+     * @return true if the role was taken away, false if the user didn't
+     * hold it.
+     */
+    public boolean deassignRole (RbacUser user, RbacRole role) {
+        Set<RbacRole> userRoles = matrix.get(user);
+        if (userRoles == null || !userRoles.remove(role)) {
+            return false;
+        }
+        SsdCounts counts = ssdCounts.get(user);
+        if (counts != null) {
+            for (int index : constraints.getConstraintIndices(role)) {
+                counts.add(index, -1);
+            }
+        }
+
+        Set<RbacUser> users = usersPerRole.get(role);
+        if (users != null && users.remove(user) && users.isEmpty()) {
+            usersPerRole.remove(role);
+        }
+        rolesChanged(user, userRoles);
+        return true;
+    }
+
+    /**
+     * Gives a user's running SSD counts, counting them from the user's roles
+     * the first time they're needed or after constraints were added.
+     *
+     * @param user      The canonical user.
+     * @param userRoles The user's roles.
+     * @return The counts.
+     */
+    private SsdCounts getSsdCounts (RbacUser user, Set<RbacRole> userRoles) {
+        SsdCounts counts = ssdCounts.get(user);
+        if (counts == null || counts.constraintCount != constraints.size()) {
+            counts = new SsdCounts(constraints.size());
+            for (RbacRole role : userRoles) {
+                for (int index : constraints.getConstraintIndices(role)) {
+                    counts.add(index, 1);
+                }
+            }
+            ssdCounts.put(user, counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Refreshes the role array kept for a user whose role set was changed
+     * in place, and tells the listeners.
+     *
+     * @param user      The canonical user.
+     * @param userRoles The user's roles.
+     */
+    private void rolesChanged (RbacUser user, Set<RbacRole> userRoles) {
+        roleArrays.put(user, userRoles.toArray(NO_ROLES));
+        for (PolicyChangeListener listener : listeners) {
+            listener.userRolesChanged(user);
+        }
+    }
+
+    /**
+     * Removes a user and every role assigned to them.
+     *
+     * @param user The user to remove.
+     * @return true if the user was removed, false if they didn't exist.
+     */
+    public boolean removeUser (RbacUser user) {
+        Set<RbacRole> removed = matrix.remove(user);
+        if (removed == null) {
+            return false;
+        }
+        roleArrays.remove(user);
+        ssdCounts.remove(user);
+        for (RbacRole role : removed) {
+            Set<RbacUser> users = usersPerRole.get(role);
+            if (users != null && users.remove(user) && users.isEmpty()) {
+                usersPerRole.remove(role);
+            }
+        }
+        for (PolicyChangeListener listener : listeners) {
+            listener.userRolesChanged(user);
+        }
+        return true;
+    }
+
     private void clearUsers () {
+        List<RbacUser> removed = new ArrayList<>(matrix.keySet());
         matrix.clear();
+        roleArrays.clear();
         usersPerRole.clear();
+        ssdCounts.clear();
+        for (RbacUser user : removed) {
+            for (PolicyChangeListener listener : listeners) {
+                listener.userRolesChanged(user);
+            }
+        }
+    }
+
+    /**
+     * Registers a listener to be told about every later change to this
+     * matrix.
+     *
+     * @param listener The listener to add.
+     */
+    public void addChangeListener (PolicyChangeListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Stops telling a listener about changes to this matrix.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeChangeListener (PolicyChangeListener listener) {
+        this.listeners.remove(listener);
     }
 
     public Set<RbacUser> getUsers () {
@@ -144,4 +460,124 @@ public class UserRoleMatrix {
     public Set<RbacRole> getRoles (RbacUser user) {
         return matrix.get(user);
     }
+
+    /**
+     * Gives every user assigned a role.
+     *
+     * @param role The role.
+     * @return The users, which must not be modified.
+     */
+    public Set<RbacUser> getUsersWithRole (RbacRole role) {
+        Set<RbacUser> users = usersPerRole.get(role);
+        return users == null ? Collections.emptySet() :
+            Collections.unmodifiableSet(users);
+    }
+
+    /**
+     * Gives a user's roles as an array that is kept alongside the role set,
+     * so callers on a hot path can walk it without allocating an iterator.
+     * The array must not be modified.
+     *
+     * @param user The user.
+     * @return The user's roles, or {@code null} if the user is unknown.
+     */
+    public RbacRole[] getRoleArray (RbacUser user) {
+        RbacRole[] roles = roleArrays.get(user);
+        if (roles == null && matrix.containsKey(user)) {
+            return NO_ROLES;
+        }
+        return roles;
+    }
+
+    /**
+     * How many roles of each SSD constraint one user holds. Sparse: only
+     * the constraints the user holds a role of have an entry, and users
+     * rarely hold roles of more than a few constraints, so entries are
+     * found by a linear scan.
+     */
+    private static class SsdCounts {
+        private final int constraintCount;
+        private int[] indices = new int[2];
+        private int[] counts = new int[2];
+        private int size;
+
+        private SsdCounts (int constraintCount) {
+            this.constraintCount = constraintCount;
+        }
+
+        private int get (int index) {
+            for (int i = 0; i < size; i++) {
+                if (indices[i] == index) {
+                    return counts[i];
+                }
+            }
+            return 0;
+        }
+
+        private void add (int index, int delta) {
+            for (int i = 0; i < size; i++) {
+                if (indices[i] == index) {
+                    counts[i] += delta;
+                    if (counts[i] == 0) {
+                        size--;
+                        indices[i] = indices[size];
+                        counts[i] = counts[size];
+                    }
+                    return;
+                }
+            }
+            if (delta == 0) {
+                return;
+            }
+            if (size == indices.length) {
+                indices = Arrays.copyOf(indices, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            indices[size] = index;
+            counts[size++] = delta;
+        }
+    }
+
+    /**
+     * The line of a users file that could not be applied.
+     */
+    private static class UserLineError {
+        private final long lineNum;
+        private final RbacUser user;
+        private final Set<RbacRole> roles;
+
+        private UserLineError (long lineNum, RbacUser user,
+            Set<RbacRole> roles) {
+            this.lineNum = lineNum;
+            this.user = user;
+            this.roles = roles;
+        }
+    }
+
+    /**
+     * The users parsed from one byte range of a users file.
+     */
+    private static class UserChunk {
+        private final List<UserLine> lines = new ArrayList<>();
+        private long lineCount;
+    }
+
+    /**
+     * One parsed line of a users file and whether it satisfies the SSD
+     * constraints.
+     */
+    private static class UserLine {
+        private final long lineNum;
+        private final RbacUser user;
+        private final Set<RbacRole> roles;
+        private final boolean valid;
+
+        private UserLine (long lineNum, RbacUser user, Set<RbacRole> roles,
+            boolean valid) {
+            this.lineNum = lineNum;
+            this.user = user;
+            this.roles = roles;
+            this.valid = valid;
+        }
+    }
 }